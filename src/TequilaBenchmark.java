@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import org.apache.log4j.PropertyConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IBoard;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IPlayer;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Board3D;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Match;
+/**
+ * Benchmark of the strength of tequilaBot against the compute it spends per move.
+ *
+ * Usage: java TequilaBenchmark [games] [budgets] [opponents] [seed] [reportFile]
+ *  games: matches per opponent and budget, default 20. tequilaBot moves first in the even and second in the odd ones.
+ *  budgets: colon separated values of tequilaBot.lookahead to compare, default 0:4:16 (0 is the plain selectMove).
+ *  opponents: colon separated player classes, default RandomPlayer:SmartPlayer:LearningPlayer.
+ *  seed: default 0.
+ *  reportFile: default benchmarkTequilaBot.csv
+ *
+ * Match k of every opponent gets the seed mix(seed+k) whatever the budget, so all budgets meet the same
+ * SeededRandomPlayer games (see TequilaTournament; SmartPlayer and LearningPlayer use an unseeded Random, which we can't change).
+ * Matches are played one after the other on one thread, so that the latencies are not disturbed by other matches,
+ * after a few warm-up matches (-DtequilaBenchmark.warmup, default 4) which are not counted.
+ *
+ * The report has one CSV line per opponent and budget, with the wins, draws and losses of tequilaBot, their rates and
+ * 95% Wilson confidence intervals, the mean and 99th percentile of the wall time of tequilaBot's moves, and the CPU time
+ * of tequilaBot and of the whole match per game. The columns are fixed, so reports of two builds can be diffed.
+ *
+ * Only 5x5x5 boards are benchmarked, the only size tequilaBot plays. tequilaBot does not learn here (tequilaBot.learn=false),
+ * unless that system property is set explicitly.
+ */
+public class TequilaBenchmark {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaBenchmark.class);
+	private static final ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+
+	static final int BOARD_SIZE=5;
+	static final String HEADER="opponent,budget,games,wins,draws,losses,winRate,winLow,winHigh,drawRate,drawLow,drawHigh,"
+			+"lossRate,lossLow,lossHigh,moves,meanMoveMs,p99MoveMs,botCpuMsPerGame,matchCpuMsPerGame";
+
+	private final int games;
+	private final long seed;
+
+	TequilaBenchmark(int games, long seed){
+		this.games=games;
+		this.seed=seed;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Properties log4j=new Properties();
+		InputStream log4jStream=TequilaBenchmark.class.getClassLoader().getResourceAsStream("log4j.tournament.properties");
+		if (log4jStream!=null){
+			log4j.load(log4jStream);
+			PropertyConfigurator.configure(log4j);
+		}
+		int games=(args.length>0) ? Integer.parseInt(args[0]) : 20;
+		String budgets[]=((args.length>1) ? args[1] : "0:4:16").split(":");
+		String opponents[]=((args.length>2) ? args[2] : "RandomPlayer:SmartPlayer:LearningPlayer").split(":");
+		long seed=(args.length>3) ? Long.parseLong(args[3]) : 0;
+		String fileName=(args.length>4) ? args[4] : "benchmarkTequilaBot.csv";
+		if (System.getProperty("tequilaBot.learn")==null){
+			System.setProperty("tequilaBot.learn", "false");
+		}
+		if (threads.isCurrentThreadCpuTimeSupported()){
+			threads.setThreadCpuTimeEnabled(true);
+		}
+		else {
+			logger.warn("Thread CPU time is not supported by this JVM, the CPU columns will be 0");
+		}
+		TequilaBenchmark benchmark=new TequilaBenchmark(games, seed);
+		benchmark.warmUp(opponents[0], Integer.getInteger("tequilaBenchmark.warmup", 4));
+		PrintWriter writer=new PrintWriter(fileName, "UTF-8");
+		try {
+			writer.println(HEADER);
+			for (String opponent : opponents){
+				for (String budget : budgets){
+					Result result=benchmark.run(opponent, Integer.parseInt(budget.trim()));
+					logger.info(result.toString());
+					writer.println(result.toCsv());
+					writer.flush();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		logger.info("Wrote the benchmark to "+fileName);
+	}
+
+	//Plays a few matches that are not counted, so that the measured ones run compiled code.
+	private void warmUp(String opponent, int matches){
+		for (int k=0; k<matches; k++){
+			play(new Result(opponent, 0, 0), opponent, 0, -1-k);
+		}
+	}
+
+	/*Function: run
+	 * Plays the matches against one opponent with one budget.
+	 */
+	Result run(String opponent, int budget){
+		Result result=new Result(opponent, budget, games*BOARD_SIZE*BOARD_SIZE*BOARD_SIZE);
+		for (int k=0; k<games; k++){
+			play(result, opponent, budget, k);
+		}
+		return result;
+	}
+
+	//Plays match k and adds it to the result.
+	private void play(Result result, String opponent, int budget, int k){
+		long matchSeed=TequilaTournament.mix(seed+k);
+		tequilaBot bot=new tequilaBot();
+		bot.lookahead=budget;
+		TimedPlayer timed=new TimedPlayer(bot, result);
+		IPlayer other=TequilaTournament.newPlayer(opponent, matchSeed);
+		boolean botFirst=(k%2==0);
+		Match match=new Match(new Board3D(BOARD_SIZE), botFirst ? timed : other, botFirst ? other : timed);
+		long cpu=cpuTime();
+		match.play();
+		result.matchCpuNanos+=cpuTime()-cpu;
+		IPlayer winner=match.getWinner();
+		if (winner==null){
+			result.draws++;
+		}
+		else if (winner==timed){
+			result.wins++;
+		}
+		else {
+			result.losses++;
+		}
+	}
+
+	private static long cpuTime(){
+		return threads.isThreadCpuTimeEnabled() ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	//95% Wilson score interval of k successes in n trials, as {low, high}.
+	static double[] wilson(int k, int n){
+		if (n==0){
+			return new double [] {0, 1};
+		}
+		double z=1.959964;
+		double p=(double)k/n;
+		double centre=(p+z*z/(2*n))/(1+z*z/n);
+		double half=z*Math.sqrt(p*(1-p)/n+z*z/(4.0*n*n))/(1+z*z/n);
+		return new double [] {Math.max(0, centre-half), Math.min(1, centre+half)};
+	}
+
+	/*Wins, draws, losses and timings of tequilaBot against one opponent with one budget.*/
+	static class Result {
+		final String opponent;
+		final int budget;
+		int wins=0;
+		int draws=0;
+		int losses=0;
+		long moveNanos[]; //Wall time of every move of tequilaBot.
+		int moves=0;
+		long botCpuNanos=0;
+		long matchCpuNanos=0;
+
+		Result(String opponent, int budget, int maxMoves){
+			this.opponent=opponent;
+			this.budget=budget;
+			this.moveNanos=new long [maxMoves];
+		}
+
+		void addMove(long nanos, long cpuNanos){
+			if (moves==moveNanos.length){
+				moveNanos=Arrays.copyOf(moveNanos, Math.max(16, moves*2));
+			}
+			moveNanos[moves++]=nanos;
+			botCpuNanos+=cpuNanos;
+		}
+
+		int games(){
+			return wins+draws+losses;
+		}
+
+		double meanMoveMs(){
+			long sum=0;
+			for (int i=0; i<moves; i++){
+				sum+=moveNanos[i];
+			}
+			return (moves==0) ? 0 : sum/1e6/moves;
+		}
+
+		//Nearest rank 99th percentile.
+		double p99MoveMs(){
+			if (moves==0){
+				return 0;
+			}
+			long sorted[]=Arrays.copyOf(moveNanos, moves);
+			Arrays.sort(sorted);
+			return sorted[(int)Math.ceil(0.99*moves)-1]/1e6;
+		}
+
+		String toCsv(){
+			int n=games();
+			StringBuilder line=new StringBuilder();
+			line.append(opponent).append(',').append(budget).append(',').append(n).append(',')
+				.append(wins).append(',').append(draws).append(',').append(losses);
+			for (int k : new int [] {wins, draws, losses}){
+				double interval[]=wilson(k, n);
+				line.append(',').append(format((n==0) ? 0 : (double)k/n))
+					.append(',').append(format(interval[0])).append(',').append(format(interval[1]));
+			}
+			line.append(',').append(moves).append(',').append(format(meanMoveMs())).append(',').append(format(p99MoveMs()))
+				.append(',').append(format((n==0) ? 0 : botCpuNanos/1e6/n)).append(',').append(format((n==0) ? 0 : matchCpuNanos/1e6/n));
+			return line.toString();
+		}
+
+		private static String format(double value){
+			return String.format(Locale.ROOT, "%.4f", value);
+		}
+
+		public String toString(){
+			double interval[]=wilson(wins, games());
+			return String.format(Locale.ROOT, "%s, budget %d: %d/%d/%d (W/D/L), win rate %.2f [%.2f, %.2f], move %.3f ms (p99 %.3f ms), %.1f CPU ms per game",
+					opponent, budget, wins, draws, losses, (games()==0) ? 0 : (double)wins/games(), interval[0], interval[1],
+					meanMoveMs(), p99MoveMs(), (games()==0) ? 0 : botCpuNanos/1e6/games());
+		}
+	}
+
+	/*Passes the moves on to tequilaBot and times them. getName and toString are passed on as well, so the logs of the
+	 *match name tequilaBot.*/
+	static class TimedPlayer implements IPlayer {
+		private final IPlayer player;
+		private final Result result;
+
+		TimedPlayer(IPlayer player, Result result){
+			this.player=player;
+			this.result=result;
+		}
+
+		public String getName() {
+			return player.getName();
+		}
+
+		public int[] makeMove(IBoard board) {
+			long cpu=cpuTime();
+			long start=System.nanoTime();
+			int move[]=player.makeMove(board);
+			result.addMove(System.nanoTime()-start, cpuTime()-cpu);
+			return move;
+		}
+
+		public void onMatchEnds(IBoard board) {
+			player.onMatchEnds(board);
+		}
+
+		public String toString() {
+			return player.toString();
+		}
+	}
+}
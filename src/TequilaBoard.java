@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IBoard;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IMove;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IPlayer;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IllegalMoveException;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
+/**
+ * A 5x5x5 board for simulations inside the bot and its tools, where Board3D is too heavy: Board3D copies
+ * itself by replaying its move history, allocates a Move for every move and checks for a winner by scanning the board.
+ *
+ * Cells are a byte array (0 empty, 1 for the player who moved first, 2 for the other one), numbered x*25+y*5+z
+ * as in TequilaFeatures, and the moves are a stack of cells, so that play and undo are O(1) apart from the
+ * end checks, which only count the chips on the lines through the cell (TequilaFeatures.CELL_LINES).
+ * As in Board3D, the game ends when a line is complete, or as a draw when no line can be won any more,
+ * i.e. every line has chips of both players.
+ * clone() shares the arrays until one of the boards changes, so copies that are only read cost nothing.
+ *
+ * It implements IBoard, so the library can use it like a Board3D (e.g. in a Match): getMoveHistory and
+ * getFieldValue give the IPlayer objects that made the moves. tequilaBot converts the board it is given with
+ * of(IBoard) once per move, and looks at the cells from there.
+ */
+public class TequilaBoard implements IBoard {
+	static final int DIM_SIZE=TequilaFeatures.DIM_SIZE;
+	static final int POS_COUNT=TequilaFeatures.POS_COUNT;
+
+	private final IPlayer players[]=new IPlayer [3]; //players[1] moved first, players[2] second.
+	private byte cells[]=new byte [POS_COUNT];
+	private byte chips[][]=new byte [3][TequilaFeatures.LINE_COUNT]; //chips[side][line]
+	private int stack[]=new int [POS_COUNT]; //The cells played, in order.
+	private int moves=0;
+	private int winner=0; //Side that completed a line, 0 if none.
+	private int blockedLines=0; //Lines with chips of both sides, which nobody can win any more.
+	private boolean shared=false; //Whether the arrays are shared with a clone, and must be copied before a change.
+
+	public TequilaBoard(){
+	}
+
+	/*Function: of
+	 * Converts a 5x5x5 board (e.g. a Board3D) by replaying its move history.
+	 */
+	static TequilaBoard of(IBoard board){
+		if (board instanceof TequilaBoard){
+			return (TequilaBoard)board.clone();
+		}
+		if (board.getDimensions()!=3 || board.getSize()!=DIM_SIZE){
+			throw new IllegalArgumentException("Only 5x5x5 boards can be converted, not "+board.getDimensions()+"D of size "+board.getSize());
+		}
+		TequilaBoard converted=new TequilaBoard();
+		for (IMove move : board.getMoveHistory()){
+			try {
+				converted.makeMove(move);
+			} catch (IllegalMoveException e) {
+				throw new IllegalArgumentException("The board has an illegal move history", e);
+			}
+		}
+		return converted;
+	}
+
+	/*Function: play
+	 * Puts a chip of the player to move on the empty cell, without the checks of makeMove.
+	 */
+	void play(int cell){
+		if (shared){
+			unshare();
+		}
+		int side=sideToMove();
+		cells[cell]=(byte)side;
+		stack[moves++]=cell;
+		for (int l : TequilaFeatures.CELL_LINES[cell]){
+			if (++chips[side][l]==DIM_SIZE){
+				winner=side;
+			}
+			if (chips[side][l]==1 && chips[3-side][l]>0){
+				blockedLines++;
+			}
+		}
+	}
+
+	/*Function: undo
+	 * Takes back the last move.
+	 */
+	void undo(){
+		if (shared){
+			unshare();
+		}
+		int cell=stack[--moves];
+		int side=cells[cell];
+		for (int l : TequilaFeatures.CELL_LINES[cell]){
+			if (--chips[side][l]==0 && chips[3-side][l]>0){
+				blockedLines--;
+			}
+		}
+		cells[cell]=0;
+		winner=0; //There was no winner before the last move, as the game would have ended.
+	}
+
+	//Copies the arrays shared with a clone, before the first change.
+	private void unshare(){
+		cells=cells.clone();
+		chips=new byte [][] {chips[0].clone(), chips[1].clone(), chips[2].clone()};
+		stack=stack.clone();
+		shared=false;
+	}
+
+	//1 if the player who moved first is to move, 2 otherwise.
+	int sideToMove(){
+		return 1+(moves%2);
+	}
+
+	//0 for an empty cell, 1 or 2 for the side whose chip is on it.
+	int cell(int cell){
+		return cells[cell];
+	}
+
+	//The cells from the point of view of the player to move, as TequilaOpeningBook.toCells: 1 for its own chips, 2 for the others.
+	byte[] cellsOfSideToMove(){
+		byte relative[]=new byte [POS_COUNT];
+		int side=sideToMove();
+		for (int c=0; c<POS_COUNT; c++){
+			if (cells[c]!=0){
+				relative[c]=(byte)((cells[c]==side) ? 1 : 2);
+			}
+		}
+		return relative;
+	}
+
+	//The side that won, 0 if none (yet).
+	int winnerSide(){
+		return winner;
+	}
+
+	int moves(){
+		return moves;
+	}
+
+	//The side of the player, 0 if it did not move yet.
+	int side(IPlayer player){
+		return (player==players[1]) ? 1 : (player==players[2]) ? 2 : 0;
+	}
+
+	public int getDimensions() {
+		return 3;
+	}
+
+	public int getSize() {
+		return DIM_SIZE;
+	}
+
+	public void makeMove(IMove move) throws IllegalMoveException {
+		if (isFinalState()){
+			throw new IllegalMoveException("Board is already in final state. No more moves allowed!");
+		}
+		int cell=toCell(move.getPosition());
+		if (cells[cell]!=0){
+			throw new IllegalMoveException("Field "+cell+" is already taken");
+		}
+		int side=sideToMove();
+		if (players[side]==null && move.getPlayer()!=players[3-side]){
+			players[side]=move.getPlayer();
+		}
+		if (move.getPlayer()!=players[side]){
+			throw new IllegalMoveException("It is not the turn of "+move.getPlayer().getName());
+		}
+		play(cell);
+	}
+
+	public IPlayer getFieldValue(int position[]) throws IllegalArgumentException {
+		return players[cells[toCell(position)]];
+	}
+
+	public boolean isFinalState() {
+		return winner!=0 || moves==POS_COUNT || blockedLines==TequilaFeatures.LINE_COUNT;
+	}
+
+	public IPlayer getWinner() throws IllegalStateException {
+		if (!isFinalState()){
+			throw new IllegalStateException("Board not in a final state! Can not determine winner!");
+		}
+		return players[winner];
+	}
+
+	//Built from the move stack on every call, for compatibility only; the bot itself uses cell() and moves().
+	public List<IMove> getMoveHistory() {
+		List<IMove> history=new ArrayList<IMove>(moves);
+		for (int i=0; i<moves; i++){
+			history.add(new Move(players[1+(i%2)], toPosition(stack[i])));
+		}
+		return Collections.unmodifiableList(history);
+	}
+
+	public IBoard clone() {
+		TequilaBoard copy=new TequilaBoard();
+		copy.players[1]=players[1];
+		copy.players[2]=players[2];
+		copy.cells=cells;
+		copy.chips=chips;
+		copy.stack=stack;
+		copy.moves=moves;
+		copy.winner=winner;
+		copy.blockedLines=blockedLines;
+		copy.shared=true;
+		shared=true;
+		return copy;
+	}
+
+	public void clear() {
+		cells=new byte [POS_COUNT];
+		chips=new byte [3][TequilaFeatures.LINE_COUNT];
+		stack=new int [POS_COUNT];
+		moves=0;
+		winner=0;
+		blockedLines=0;
+		shared=false;
+		players[1]=null;
+		players[2]=null;
+	}
+
+	static int toCell(int position[]){
+		if (position==null || position.length!=3){
+			throw new IllegalArgumentException("A position needs 3 coordinates");
+		}
+		for (int p : position){
+			if (p<0 || p>=DIM_SIZE){
+				throw new IllegalArgumentException("Position out of the board: "+p);
+			}
+		}
+		return position[0]*DIM_SIZE*DIM_SIZE+position[1]*DIM_SIZE+position[2];
+	}
+
+	static int[] toPosition(int cell){
+		return new int [] {cell/(DIM_SIZE*DIM_SIZE), (cell/DIM_SIZE)%DIM_SIZE, cell%DIM_SIZE};
+	}
+
+	public String toString(){
+		StringBuilder text=new StringBuilder();
+		for (int x=0; x<DIM_SIZE; x++){
+			for (int y=0; y<DIM_SIZE; y++){
+				for (int z=0; z<DIM_SIZE; z++){
+					text.append(".XO".charAt(cells[x*DIM_SIZE*DIM_SIZE+y*DIM_SIZE+z]));
+				}
+				text.append(y<DIM_SIZE-1 ? " " : "\n");
+			}
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.List;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IMove;
+/**
+ * The features X0-X13 of a 5x5x5 board, kept up to date move by move.
+ *
+ *  X0-X7: as findFeatures: number of unblocked lines with 4,3,2,1 chips of ours (X0-X3) and of the opponent (X4-X7).
+ *  X8:  Fork cells of ours: empty cells where at least 2 unblocked lines with at least 2 of our chips cross.
+ *  X9:  The same for the opponent.
+ *  X10: Double threats of ours: empty cells where at least 2 unblocked lines with at least 3 of our chips cross,
+ *       i.e. moves after which we threaten to win in two places.
+ *  X11: The same for the opponent.
+ *  X12: Our chips on control cells, the 17 cells with at least 7 lines through them (centre and space diagonals).
+ *  X13: The same for the opponent.
+ *
+ * Instead of rescanning the 109 lines for every board (boardToLineArray + findFeatures), we keep the number of chips of
+ * each side on every line, and for every cell how many "fork lines" (unblocked, at least 2 chips) and "threat lines"
+ * (unblocked, at least 3 chips) of each side pass through it. play and undo only visit the lines through the cell
+ * (at most 13) and their cells, so trying a move costs O(lines through the cell) instead of a full scan.
+ *
+ * Cells are numbered x*25+y*5+z for a position {x,y,z}, as in TequilaOpeningBook.
+ */
+public class TequilaFeatures {
+	static final int COUNT=14;
+	static final int DIM_SIZE=5;
+	static final int POS_COUNT=125;
+	static final int LINE_COUNT=109;
+
+	static final int OURS=1;
+	static final int THEIRS=2;
+
+	/*LINES[l] are the 5 cells of line l, CELL_LINES[c] the lines through cell c.*/
+	static final int LINES[][]=new int [LINE_COUNT][];
+	static final int CELL_LINES[][]=new int [POS_COUNT][];
+	static final boolean CONTROL[]=new boolean [POS_COUNT];
+
+	static {
+		//The same 109 lines that boardToLineArray walks through.
+		List<int[]> lines=new ArrayList<int[]>();
+		for (int layer=0; layer<DIM_SIZE; layer++){
+			for (int i=0; i<DIM_SIZE; i++){
+				lines.add(line(layer,i,0, 0,0,1));
+				lines.add(line(layer,0,i, 0,1,0));
+			}
+			lines.add(line(layer,0,0, 0,1,1));
+			lines.add(line(layer,0,4, 0,1,-1));
+		}
+		for (int layer=0; layer<DIM_SIZE; layer++){
+			for (int j=0; j<DIM_SIZE; j++){
+				lines.add(line(0,layer,j, 1,0,0));
+			}
+			lines.add(line(0,layer,0, 1,0,1));
+			lines.add(line(0,layer,4, 1,0,-1));
+		}
+		for (int layer=0; layer<DIM_SIZE; layer++){
+			lines.add(line(0,0,layer, 1,1,0));
+			lines.add(line(0,4,layer, 1,-1,0));
+		}
+		lines.add(line(0,0,0, 1,1,1));
+		lines.add(line(0,0,4, 1,1,-1));
+		lines.add(line(4,0,0, -1,1,1));
+		lines.add(line(0,4,0, 1,-1,1));
+		lines.toArray(LINES);
+
+		int counts[]=new int [POS_COUNT];
+		for (int l=0; l<LINE_COUNT; l++){
+			for (int c : LINES[l]){
+				counts[c]++;
+			}
+		}
+		for (int c=0; c<POS_COUNT; c++){
+			CELL_LINES[c]=new int [counts[c]];
+			CONTROL[c]=(counts[c]>=7);
+			counts[c]=0;
+		}
+		for (int l=0; l<LINE_COUNT; l++){
+			for (int c : LINES[l]){
+				CELL_LINES[c][counts[c]++]=l;
+			}
+		}
+	}
+
+	//The cells of a line starting at {x,y,z} in direction {dx,dy,dz}.
+	private static int[] line(int x, int y, int z, int dx, int dy, int dz){
+		int cells[]=new int [DIM_SIZE];
+		for (int i=0; i<DIM_SIZE; i++){
+			cells[i]=(x+i*dx)*DIM_SIZE*DIM_SIZE+(y+i*dy)*DIM_SIZE+(z+i*dz);
+		}
+		return cells;
+	}
+
+	private final byte cells[]=new byte [POS_COUNT]; //0 empty, OURS or THEIRS.
+	private final int chips[][]=new int [3][LINE_COUNT]; //chips[side][line], side OURS or THEIRS.
+	private final int forkLines[][]=new int [3][POS_COUNT]; //forkLines[side][cell]
+	private final int threatLines[][]=new int [3][POS_COUNT]; //threatLines[side][cell]
+	private final int values[]=new int [COUNT];
+
+	//The features of a TequilaBoard, our chips being those of the given side (1 or 2).
+	static TequilaFeatures of(TequilaBoard board, int ourSide){
+		TequilaFeatures features=new TequilaFeatures();
+		for (int c=0; c<POS_COUNT; c++){
+			if (board.cell(c)!=0){
+				features.play(c, (board.cell(c)==ourSide) ? OURS : THEIRS);
+			}
+		}
+		return features;
+	}
+
+	//Plays a move from a move history, as a chip of side (OURS or THEIRS).
+	void play(IMove move, int side){
+		int p[]=move.getPosition();
+		play(p[0]*DIM_SIZE*DIM_SIZE+p[1]*DIM_SIZE+p[2], side);
+	}
+
+	/*Function: play
+	 * Puts a chip of side (OURS or THEIRS) on the empty cell.
+	 */
+	void play(int cell, int side){
+		addCell(cell, -1);
+		cells[cell]=(byte)side;
+		if (CONTROL[cell]){
+			values[side==OURS ? 12 : 13]++;
+		}
+		for (int l : CELL_LINES[cell]){
+			addLine(l, -1);
+			chips[side][l]++;
+			addLine(l, 1);
+		}
+	}
+
+	/*Function: undo
+	 * Takes the chip off the cell again.
+	 */
+	void undo(int cell){
+		int side=cells[cell];
+		for (int l : CELL_LINES[cell]){
+			addLine(l, -1);
+			chips[side][l]--;
+			addLine(l, 1);
+		}
+		if (CONTROL[cell]){
+			values[side==OURS ? 12 : 13]--;
+		}
+		cells[cell]=0;
+		addCell(cell, 1);
+	}
+
+	boolean isEmpty(int cell){
+		return cells[cell]==0;
+	}
+
+	//Whether the chip on cell completes a line of its side, i.e. wins.
+	boolean completes(int cell){
+		int side=cells[cell];
+		for (int l : CELL_LINES[cell]){
+			if (chips[side][l]==DIM_SIZE){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//A copy of the current features X0-X13.
+	int[] values(){
+		return values.clone();
+	}
+
+	//Adds (sign 1) or removes (sign -1) what line l contributes to the features in its current state.
+	private void addLine(int l, int sign){
+		int ours=chips[OURS][l];
+		int theirs=chips[THEIRS][l];
+		//X0-X7, exactly as findFeatures counts them.
+		if (ours>0 && theirs==0){
+			values[ours<5 ? 4-ours : 0]+=sign;
+		}
+		else if (theirs>0 && ours==0){
+			values[theirs<5 ? 8-theirs : 4]+=sign;
+		}
+		for (int side=OURS; side<=THEIRS; side++){
+			int own=(side==OURS) ? ours : theirs;
+			int other=(side==OURS) ? theirs : ours;
+			if (other>0 || own<2){
+				continue;
+			}
+			for (int c : LINES[l]){
+				forkLines[side][c]+=sign;
+				if (cells[c]==0 && forkLines[side][c]==(sign>0 ? 2 : 1)){
+					values[side==OURS ? 8 : 9]+=sign;
+				}
+				if (own>=3){
+					threatLines[side][c]+=sign;
+					if (cells[c]==0 && threatLines[side][c]==(sign>0 ? 2 : 1)){
+						values[side==OURS ? 10 : 11]+=sign;
+					}
+				}
+			}
+		}
+	}
+
+	//Adds (sign 1) or removes (sign -1) what an empty cell contributes to X8-X11.
+	private void addCell(int cell, int sign){
+		for (int side=OURS; side<=THEIRS; side++){
+			if (forkLines[side][cell]>=2){
+				values[side==OURS ? 8 : 9]+=sign;
+			}
+			if (threatLines[side][cell]>=2){
+				values[side==OURS ? 10 : 11]+=sign;
+			}
+		}
+	}
+}
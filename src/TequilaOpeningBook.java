@@ -0,0 +1,251 @@
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IBoard;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IMove;
+/**
+ * Opening book for tequilaBot.
+ *
+ * The book is a binary file (openingBookTequilaBot.bin) written offline by TequilaOpeningBookGenerator
+ * and memory-mapped at runtime, so looking up an opening move costs a canonicalisation plus a binary search.
+ * Bots get the book with get, which maps each file once per JVM and shares it between bot instances.
+ *
+ * Positions are canonicalised under the 48 symmetries of the cube (6 axis permutations x 8 axis reflections),
+ * all of which map winning lines onto winning lines. A position is described from the point of view of the
+ * player to move: 1 for its own chips, 2 for the opponent's, 0 for empty cells. The canonical form is the
+ * lexicographically smallest transformed cell array, and the key stored in the book is a 64 bit hash of it.
+ *
+ * File layout (big endian, as written by DataOutputStream):
+ *  int  MAGIC
+ *  int  VERSION
+ *  int  maximum ply stored
+ *  int  number of entries
+ *  entries, sorted by key: long key, int move (cell index in the canonical frame)
+ *
+ * Cell indices are x*25+y*5+z for a position {x,y,z}, as passed to IBoard.getFieldValue.
+ */
+public class TequilaOpeningBook {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaOpeningBook.class);
+	private static final Map<Path,TequilaOpeningBook> books=new HashMap<Path,TequilaOpeningBook>(); //Mapped books by file, null for invalid ones.
+	private static final Map<Path,Long> mappedTimes=new HashMap<Path,Long>(); //Modification time of each file when it was mapped, -1 if missing.
+
+	static final int MAGIC=0x54514F42; //"TQOB"
+	static final int VERSION=1;
+	static final int HEADER_SIZE=16;
+	static final int ENTRY_SIZE=12;
+
+	static final int DIM_SIZE=5;
+	static final int POS_COUNT=125;
+
+	/*SYMMETRIES[s][c] is the cell that cell c is moved to by symmetry s, INVERSE[s] undoes it.*/
+	static final int SYMMETRIES[][]=new int [48][POS_COUNT];
+	static final int INVERSE[][]=new int [48][POS_COUNT];
+
+	static {
+		int perms[][]=new int[][] {{0,1,2},{0,2,1},{1,0,2},{1,2,0},{2,0,1},{2,1,0}};
+		int s=0;
+		for (int p=0; p<perms.length; p++){
+			for (int flips=0; flips<8; flips++){
+				for (int c=0; c<POS_COUNT; c++){
+					int in[]=toPosition(c);
+					int out[]=new int[3];
+					for (int a=0; a<3; a++){
+						out[a]=in[perms[p][a]];
+						if ((flips & (1<<a))!=0){
+							out[a]=DIM_SIZE-1-out[a];
+						}
+					}
+					int t=toCell(out);
+					SYMMETRIES[s][c]=t;
+					INVERSE[s][t]=c;
+				}
+				s++;
+			}
+		}
+	}
+
+	private final MappedByteBuffer entries;
+	private final int count;
+	private final int maxPly;
+
+	private TequilaOpeningBook(MappedByteBuffer buffer){
+		this.count=buffer.getInt(12);
+		this.maxPly=buffer.getInt(8);
+		this.entries=buffer;
+	}
+
+	/*Function: get
+	 * Returns the book of the given file, mapped once per file and JVM, so bots created for every match share it.
+	 * The file is mapped again only if it was modified since. Returns null when there is no (valid) book.
+	 */
+	public static synchronized TequilaOpeningBook get(String fileName){
+		Path path=Paths.get(fileName).toAbsolutePath().normalize();
+		long modified=-1;
+		try {
+			if (Files.isRegularFile(path)){
+				modified=Files.getLastModifiedTime(path).toMillis();
+			}
+		} catch (IOException e) {
+			logger.error("Could not read the modification time of opening book "+path, e);
+		}
+		Long mappedModified=mappedTimes.get(path);
+		if (mappedModified==null || mappedModified!=modified){
+			books.put(path, open(path.toString())); //Also if it is null, so an invalid book is only reported once.
+			mappedTimes.put(path, modified);
+		}
+		return books.get(path);
+	}
+
+	/*Function: open
+	 * Maps the book file. Returns null when there is no (valid) book, in which case the bot plays without one.
+	 * Bots use get, which maps every file only once.
+	 */
+	public static TequilaOpeningBook open(String fileName){
+		Path path=Paths.get(fileName);
+		if (!Files.isRegularFile(path)){
+			return null;
+		}
+		try (FileChannel channel=FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (channel.size()<HEADER_SIZE || buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=VERSION
+					|| channel.size()!=HEADER_SIZE+(long)buffer.getInt(12)*ENTRY_SIZE){
+				logger.warn("Ignoring invalid opening book: "+fileName);
+				return null;
+			}
+			return new TequilaOpeningBook(buffer);
+		} catch (IOException e) {
+			logger.error("Could not map opening book "+fileName, e);
+			return null;
+		}
+	}
+
+	public int size(){
+		return count;
+	}
+
+	public int getMaxPly(){
+		return maxPly;
+	}
+
+	/*Function: lookup
+	 * Returns the book move for the player to move on this board, or null if the position is not in the book.
+	 */
+	public int[] lookup(IBoard board){
+		List<IMove> history=board.getMoveHistory();
+		if (history.size()>maxPly || board.getDimensions()!=3 || board.getSize()!=DIM_SIZE){
+			return null;
+		}
+		byte cells[]=toCells(history);
+		byte canonical[]=new byte[POS_COUNT];
+		int symmetry=canonicalise(cells, canonical);
+		long key=hash(canonical);
+		int low=0;
+		int high=count-1;
+		while (low<=high){
+			int mid=(low+high)>>>1;
+			long midKey=entries.getLong(HEADER_SIZE+mid*ENTRY_SIZE);
+			if (midKey<key){
+				low=mid+1;
+			}
+			else if (midKey>key){
+				high=mid-1;
+			}
+			else {
+				int move=INVERSE[symmetry][entries.getInt(HEADER_SIZE+mid*ENTRY_SIZE+8)];
+				if (cells[move]!=0){
+					return null; //Should only happen on a hash collision.
+				}
+				return toPosition(move);
+			}
+		}
+		return null;
+	}
+
+	//Cells of the board from the point of view of the player to move: 1 for own chips, 2 for the opponent's.
+	static byte[] toCells(List<IMove> history){
+		byte cells[]=new byte[POS_COUNT];
+		int moves=history.size();
+		for (int i=0; i<moves; i++){
+			cells[toCell(history.get(i).getPosition())]=(byte)(((moves-i)%2==0) ? 1 : 2);
+		}
+		return cells;
+	}
+
+	//Writes the lexicographically smallest symmetric image of cells into canonical, and returns the symmetry used.
+	static int canonicalise(byte cells[], byte canonical[]){
+		byte candidate[]=new byte[POS_COUNT];
+		int best=-1;
+		for (int s=0; s<48; s++){
+			for (int c=0; c<POS_COUNT; c++){
+				candidate[SYMMETRIES[s][c]]=cells[c];
+			}
+			boolean smaller=(best<0);
+			for (int c=0; c<POS_COUNT && !smaller; c++){
+				if (candidate[c]!=canonical[c]){
+					if (candidate[c]<canonical[c]){
+						smaller=true;
+					}
+					else {
+						break;
+					}
+				}
+			}
+			if (smaller){
+				System.arraycopy(candidate, 0, canonical, 0, POS_COUNT);
+				best=s;
+			}
+		}
+		return best;
+	}
+
+	//FNV-1a, 64 bit.
+	static long hash(byte canonical[]){
+		long h=0xcbf29ce484222325L;
+		for (int c=0; c<POS_COUNT; c++){
+			h^=canonical[c];
+			h*=0x100000001b3L;
+		}
+		return h;
+	}
+
+	/*Function: write
+	 * Writes a book, given the canonical keys and the moves (canonical cell indices) for them.
+	 */
+	static void write(String fileName, int maxPly, Map<Long,Integer> book) throws IOException{
+		TreeMap<Long,Integer> sorted=new TreeMap<Long,Integer>(book);
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(maxPly);
+			out.writeInt(sorted.size());
+			for (Map.Entry<Long,Integer> entry : sorted.entrySet()){
+				out.writeLong(entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static int toCell(int position[]){
+		return position[0]*DIM_SIZE*DIM_SIZE+position[1]*DIM_SIZE+position[2];
+	}
+
+	static int[] toPosition(int cell){
+		return new int[] {cell/(DIM_SIZE*DIM_SIZE), (cell/DIM_SIZE)%DIM_SIZE, cell%DIM_SIZE};
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+/**
+ * Offline generator for the opening book of tequilaBot (see TequilaOpeningBook).
+ *
+ * Usage: java TequilaOpeningBookGenerator [maxPly] [outputFile]
+ *  maxPly: last ply (number of moves already on the board) for which book moves are stored. Default 2 (ply 4 takes about a second).
+ *  outputFile: default openingBookTequilaBot.bin
+ *
+ * The generator walks every opening up to maxPly, with tequilaBot moving first and second. At the nodes
+ * where the opponent moves every reply is followed, at the nodes where tequilaBot moves only the book move is.
+ * Symmetric positions are visited only once.
+ *
+ * The book move is chosen by a 2-ply search using the weights from weightsTequilaBot.txt: every move is valued
+ * by the worst score the opponent can leave us with after its reply. This is more than makeMove can afford
+ * during a game, which only looks at the board after its own move.
+ * The tree is walked on a single TequilaBoard with play/undo, and the features are kept up to date move by move.
+ */
+public class TequilaOpeningBookGenerator {
+	private final tequilaBot bot=new tequilaBot();
+	private final Map<Long,Integer> book=new HashMap<Long,Integer>();
+	private final int maxPly;
+
+	TequilaOpeningBookGenerator(int maxPly){
+		this.maxPly=maxPly;
+		bot.loadExperience();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int maxPly=(args.length>0) ? Integer.parseInt(args[0]) : 2;
+		String fileName=(args.length>1) ? args[1] : "openingBookTequilaBot.bin";
+		TequilaOpeningBookGenerator generator=new TequilaOpeningBookGenerator(maxPly);
+		long start=System.currentTimeMillis();
+		generator.visit(new TequilaBoard(), true);
+		generator.visit(new TequilaBoard(), false);
+		TequilaOpeningBook.write(fileName, maxPly, generator.book);
+		System.out.println("Wrote "+generator.book.size()+" positions up to ply "+maxPly+" to "+fileName
+				+" in "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+	private void visit(TequilaBoard board, boolean botToMove){
+		int ply=board.moves();
+		if (ply>maxPly || board.isFinalState()){
+			return;
+		}
+		if (botToMove){
+			int move;
+			if (ply==0){
+				move=TequilaOpeningBook.toCell(new int[] {2,2,2}); //makeMove always opens in the centre, so it needs no book entry.
+			}
+			else {
+				byte canonical[]=new byte[TequilaOpeningBook.POS_COUNT];
+				int symmetry=TequilaOpeningBook.canonicalise(board.cellsOfSideToMove(), canonical);
+				long key=TequilaOpeningBook.hash(canonical);
+				if (book.containsKey(key)){
+					return; //A symmetric position was already expanded.
+				}
+				move=search(board, symmetry);
+				book.put(key, TequilaOpeningBook.SYMMETRIES[symmetry][move]);
+			}
+			board.play(move);
+			visit(board, false);
+			board.undo();
+		}
+		else {
+			for (int reply=0; reply<TequilaOpeningBook.POS_COUNT; reply++){
+				if (board.cell(reply)==0){
+					board.play(reply);
+					visit(board, true);
+					board.undo();
+				}
+			}
+		}
+	}
+
+	/*Function: search
+	 * Returns the move (cell) maximising the minimum score over all replies of the opponent.
+	 * Ties go to the smallest cell index in the canonical frame, so the book does not depend on how the
+	 * position was reached.
+	 * The features are updated move by move with the board, instead of being found again for every reply.
+	 */
+	private int search(TequilaBoard board, int symmetry){
+		int ply=board.moves();
+		int botSide=board.sideToMove();
+		TequilaFeatures features=TequilaFeatures.of(board, botSide);
+		int best=-1;
+		int bestCanonical=Integer.MAX_VALUE;
+		double bestValue=Double.NEGATIVE_INFINITY;
+		for (int c=0; c<TequilaOpeningBook.POS_COUNT; c++){
+			if (board.cell(c)!=0){
+				continue;
+			}
+			board.play(c);
+			features.play(c, TequilaFeatures.OURS);
+			double value;
+			if (board.isFinalState()){
+				value=(board.winnerSide()==botSide) ? Double.POSITIVE_INFINITY : 0;
+			}
+			else {
+				value=Double.POSITIVE_INFINITY;
+				for (int r=0; r<TequilaOpeningBook.POS_COUNT && value>=bestValue; r++){
+					if (board.cell(r)==0){
+						board.play(r);
+						features.play(r, TequilaFeatures.THEIRS);
+						value=Math.min(value, evaluate(board, features, ply));
+						features.undo(r);
+						board.undo();
+					}
+				}
+			}
+			features.undo(c);
+			board.undo();
+			int canonicalCell=TequilaOpeningBook.SYMMETRIES[symmetry][c];
+			if (best<0 || value>bestValue || (value==bestValue && canonicalCell<bestCanonical)){
+				best=c;
+				bestValue=value;
+				bestCanonical=canonicalCell;
+			}
+		}
+		return best;
+	}
+
+	//Scores a board with the weights of the turn in which our move was made, as selectMove does.
+	private double evaluate(TequilaBoard board, TequilaFeatures features, int turn){
+		if (board.winnerSide()!=0){
+			return Double.NEGATIVE_INFINITY; //Only the opponent can have won, with the reply.
+		}
+		bot.turn=turn;
+		double score=bot.score(features.values());
+		return Double.isNaN(score) ? Double.NEGATIVE_INFINITY : score;
+	}
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IPlayer;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IllegalMoveException;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Board3D;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
+import de.ovgu.dke.teaching.ml.tictactoe.game.ShallowPlayer;
+/**
+ * Offline tool for the traces of tequilaBot (see TequilaTrace).
+ *
+ * Usage:
+ *  java TequilaReplay list traceFile [count]: the last count records (default 20).
+ *  java TequilaReplay slowest traceFile [count]: the count slowest records (default 20).
+ *  java TequilaReplay replay traceFile sequence [repeats]: replays record #sequence repeats times (default 1000),
+ *       checks that the same move is played and prints the latency of the replays.
+ *  java TequilaReplay extract traceFile sequence caseFile: copies record #sequence and its weights into a trace of its own,
+ *       which can be kept as a benchmark case and replayed with "replay caseFile 0".
+ *
+ * A move is replayed by a fresh tequilaBot that does not learn, with the weights stored in the trace for the record,
+ * its lookahead, and openingBookTequilaBot.bin if the bot had a book. The board is rebuilt from the recorded cells,
+ * with the chips of both players alternating; only the cells and the number of moves matter to makeMove.
+ * The book itself is not stored in the trace, so replays of book moves need the same book file.
+ */
+public class TequilaReplay {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<2){
+			System.out.println("Usage: java TequilaReplay list|slowest traceFile [count]");
+			System.out.println("       java TequilaReplay replay traceFile sequence [repeats]");
+			System.out.println("       java TequilaReplay extract traceFile sequence caseFile");
+			return;
+		}
+		Path file=Paths.get(args[1]);
+		List<TequilaTrace.Record> records=TequilaTrace.read(file);
+		if (args[0].equals("list")){
+			int count=(args.length>2) ? Integer.parseInt(args[2]) : 20;
+			for (TequilaTrace.Record record : records.subList(Math.max(0, records.size()-count), records.size())){
+				System.out.println(record);
+			}
+		}
+		else if (args[0].equals("slowest")){
+			int count=(args.length>2) ? Integer.parseInt(args[2]) : 20;
+			List<TequilaTrace.Record> sorted=new ArrayList<TequilaTrace.Record>(records);
+			Collections.sort(sorted, new Comparator<TequilaTrace.Record>() {
+				public int compare(TequilaTrace.Record a, TequilaTrace.Record b) {
+					return Long.compare(b.latency, a.latency);
+				}
+			});
+			for (TequilaTrace.Record record : sorted.subList(0, Math.min(count, sorted.size()))){
+				System.out.println(record);
+			}
+		}
+		else if (args[0].equals("replay")){
+			TequilaTrace.Record record=find(records, Long.parseLong(args[2]));
+			replay(file, record, (args.length>3) ? Integer.parseInt(args[3]) : 1000);
+		}
+		else if (args[0].equals("extract")){
+			TequilaTrace.Record record=find(records, Long.parseLong(args[2]));
+			Path caseFile=Paths.get(args[3]);
+			Files.deleteIfExists(caseFile);
+			TequilaTrace trace=TequilaTrace.open(caseFile, 1);
+			trace.add(record);
+			trace.close(); //Its clean-up of unreferenced weights is done before we copy the weights.
+			Path weightsDirectory=TequilaTrace.weightsDirectory(caseFile);
+			Files.createDirectories(weightsDirectory);
+			Files.copy(TequilaTrace.weightsFile(TequilaTrace.weightsDirectory(file), record.weightsChecksum),
+					TequilaTrace.weightsFile(weightsDirectory, record.weightsChecksum), StandardCopyOption.REPLACE_EXISTING);
+			System.out.println("Extracted "+record+" to "+caseFile);
+		}
+		else {
+			System.out.println("Unknown command "+args[0]);
+		}
+	}
+
+	private static TequilaTrace.Record find(List<TequilaTrace.Record> records, long sequence){
+		for (TequilaTrace.Record record : records){
+			if (record.sequence==sequence){
+				return record;
+			}
+		}
+		throw new IllegalArgumentException("There is no record #"+sequence+" (any more) in the trace");
+	}
+
+	/*Function: replay
+	 * Replays a record with fresh bots, and prints whether the move is the same and how long the replays took.
+	 */
+	static void replay(Path file, TequilaTrace.Record record, int repeats) throws IOException{
+		System.out.println("Replaying "+record);
+		TequilaWeights weights=TequilaWeights.load(TequilaTrace.weightsFile(TequilaTrace.weightsDirectory(file), record.weightsChecksum), 0);
+		if (TequilaWeights.checksum(weights.values(), weights.getLayout())!=record.weightsChecksum){
+			System.out.println("Warning: the stored weights do not match the checksum of the record");
+		}
+		TequilaOpeningBook book=record.book ? TequilaOpeningBook.get("openingBookTequilaBot.bin") : null;
+		if (record.book && book==null){
+			System.out.println("Warning: the bot had an opening book, but there is no openingBookTequilaBot.bin");
+		}
+		long latencies[]=new long [repeats];
+		int moves[]=new int [repeats];
+		for (int r=0; r<repeats; r++){
+			tequilaBot bot=new tequilaBot();
+			bot.learning=false;
+			bot.trace=null;
+			bot.useWeights(weights.values(), weights.getLayout());
+			bot.openingBook=book;
+			bot.lookahead=record.lookahead;
+			Board3D board=board(record, bot);
+			long start=System.nanoTime();
+			int move[]=bot.makeMove(board);
+			latencies[r]=System.nanoTime()-start;
+			moves[r]=TequilaOpeningBook.toCell(move);
+		}
+		int different=0;
+		for (int move : moves){
+			if (move!=record.move){
+				different++;
+			}
+		}
+		if (different==0){
+			System.out.println("Same move "+Arrays.toString(TequilaOpeningBook.toPosition(record.move))+" in all "+repeats+" replays");
+		}
+		else {
+			System.out.println("DIFFERENT move in "+different+" of "+repeats+" replays, e.g. "
+					+Arrays.toString(TequilaOpeningBook.toPosition(moves[0]))+" instead of "+Arrays.toString(TequilaOpeningBook.toPosition(record.move)));
+		}
+		Arrays.sort(latencies);
+		long sum=0;
+		for (long latency : latencies){
+			sum+=latency;
+		}
+		System.out.println(String.format("Recorded %.3f ms, replayed: mean %.3f ms, median %.3f ms, p99 %.3f ms, min %.3f ms",
+				record.latency/1e6, sum/1e6/repeats, latencies[repeats/2]/1e6, latencies[(int)Math.ceil(0.99*repeats)-1]/1e6, latencies[0]/1e6));
+	}
+
+	//Rebuilds the board of a record, the bot having the chips marked 1.
+	static Board3D board(TequilaTrace.Record record, IPlayer bot){
+		List<Integer> ours=new ArrayList<Integer>();
+		List<Integer> theirs=new ArrayList<Integer>();
+		for (int c=0; c<TequilaOpeningBook.POS_COUNT; c++){
+			if (record.cells[c]==1){
+				ours.add(c);
+			}
+			else if (record.cells[c]==2){
+				theirs.add(c);
+			}
+		}
+		IPlayer opponent=new ShallowPlayer("Opponent");
+		Board3D board=new Board3D(TequilaOpeningBook.DIM_SIZE);
+		boolean ourTurn=(ours.size()==theirs.size()); //Otherwise the opponent moved first.
+		try {
+			for (int i=0, j=0; i<ours.size() || j<theirs.size(); ourTurn=!ourTurn){
+				if (ourTurn){
+					board.makeMove(new Move(bot, TequilaOpeningBook.toPosition(ours.get(i++))));
+				}
+				else {
+					board.makeMove(new Move(opponent, TequilaOpeningBook.toPosition(theirs.get(j++))));
+				}
+			}
+		} catch (IllegalMoveException e) {
+			throw new IllegalStateException("Could not rebuild the board of "+record, e);
+		}
+		return board;
+	}
+}
@@ -0,0 +1,275 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.apache.log4j.PropertyConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IPlayer;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Board3D;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Match;
+/**
+ * Multi-process training of tequilaBot: one coordinator and N worker JVMs.
+ *
+ * Usage:
+ *  java TequilaSelfPlay coordinator workers iterations gamesPerBatch [opponent] [seed] [port]
+ *  java TequilaSelfPlay worker host port
+ *
+ * The coordinator loads weightsTequilaBot.txt, listens on port (default 4711, bound to the loopback address
+ * unless -DtequilaSelfPlay.bind=0.0.0.0 is given) and starts -DtequilaSelfPlay.local workers (default: all of them)
+ * as local processes with its own java and classpath. Workers on other machines can join with the worker command
+ * (their opponent is then given with -DtequilaSelfPlay.opponent). The coordinator gives up if a local worker exits
+ * before it connects, or if not all workers connected within -DtequilaSelfPlay.connectTimeout ms (default 60000).
+ * It also refuses to start without valid weights in weightsTequilaBot.txt.
+ *
+ * In every iteration the coordinator sends each worker the current weights (a snapshot with a version number)
+ * and a batch: a number of games and a seed. The worker plays the games against the opponent (a player class name
+ * as in tictactoe.properties, default RandomPlayer, which is seeded as in TequilaTournament), taking turns as
+ * first player, and learns from each game in memory as addAndStoreExperience does, without writing the file.
+ * With the opponent tequilaBot this is self-play: the opponent plays with the weights of the snapshot and does not learn.
+ * tequilaBot tells its chips from the opponent's by the order of the moves, so it can play against itself.
+ * It sends back the change of the weights (rows x 15, as many rows as the turn layout has) over the batch, and its
+ * wins, draws and losses.
+ *
+ * The coordinator merges the workers by parameter averaging, i.e. it adds the mean of their changes to the
+ * snapshot, writes the result to weightsTequilaBot.txt and sends it out with the next batch.
+ *
+ * Protocol (DataOutputStream over one socket per worker):
+ *  coordinator to worker: int command (BATCH or STOP), and for BATCH: long version, int games, long seed,
+ *                         UTF turn layout (see TequilaTurnLayout), rows x 15 doubles
+ *  worker to coordinator: long version, int wins, int draws, int losses, rows x 15 doubles
+ */
+public class TequilaSelfPlay {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaSelfPlay.class);
+
+	static final int STOP=0;
+	static final int BATCH=1;
+	static final int COLUMNS=TequilaWeights.COLUMNS;
+
+	public static void main(String[] args) throws Exception {
+		Properties log4j=new Properties();
+		InputStream log4jStream=TequilaSelfPlay.class.getClassLoader().getResourceAsStream("log4j.tournament.properties");
+		if (log4jStream!=null){
+			log4j.load(log4jStream);
+			PropertyConfigurator.configure(log4j);
+		}
+		if (args.length>=4 && args[0].equals("coordinator")){
+			coordinate(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+					(args.length>4) ? args[4] : "RandomPlayer",
+					(args.length>5) ? Long.parseLong(args[5]) : 0,
+					(args.length>6) ? Integer.parseInt(args[6]) : 4711);
+		}
+		else if (args.length==3 && args[0].equals("worker")){
+			work(args[1], Integer.parseInt(args[2]));
+		}
+		else {
+			System.out.println("Usage: java TequilaSelfPlay coordinator workers iterations gamesPerBatch [opponent] [seed] [port]");
+			System.out.println("       java TequilaSelfPlay worker host port");
+			System.exit(1);
+		}
+	}
+
+	/*Function: coordinate
+	 * Runs the coordinator: hands out batches, averages the workers' changes and stores the weights.
+	 */
+	static void coordinate(int workers, int iterations, int games, String opponent, long seed, int port) throws IOException, InterruptedException{
+		tequilaBot bot=new tequilaBot();
+		bot.loadExperience();
+		if (bot.weights==null){
+			throw new IOException("There are no valid weights in weightsTequilaBot.txt to start the training from");
+		}
+		double snapshot[][]=bot.thetas;
+		TequilaTurnLayout layout=bot.layout;
+		int rows=layout.rows();
+		String bind=System.getProperty("tequilaSelfPlay.bind");
+		ServerSocket server=new ServerSocket(port, workers,
+				(bind==null) ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind));
+		List<Process> processes=new ArrayList<Process>();
+		List<Socket> sockets=new ArrayList<Socket>();
+		boolean stopped=false;
+		try {
+			int local=Integer.getInteger("tequilaSelfPlay.local", workers);
+			String java=System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+			for (int w=0; w<local; w++){
+				ProcessBuilder builder=new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						"-DtequilaSelfPlay.opponent="+opponent, "TequilaSelfPlay", "worker", "localhost", ""+server.getLocalPort());
+				builder.inheritIO();
+				processes.add(builder.start());
+			}
+			List<DataInputStream> inputs=new ArrayList<DataInputStream>();
+			List<DataOutputStream> outputs=new ArrayList<DataOutputStream>();
+			//Waits for the workers, but not forever: local workers may die at startup (e.g. with a bad classpath).
+			long deadline=System.currentTimeMillis()+Long.getLong("tequilaSelfPlay.connectTimeout", 60000);
+			server.setSoTimeout(1000);
+			while (sockets.size()<workers){
+				Socket socket;
+				try {
+					socket=server.accept();
+				} catch (SocketTimeoutException e) {
+					for (Process process : processes){
+						if (!process.isAlive()){
+							throw new IOException("A local worker exited with code "+process.exitValue()+" before it connected");
+						}
+					}
+					if (System.currentTimeMillis()>deadline){
+						throw new IOException("Only "+sockets.size()+" of "+workers+" workers connected in time (-DtequilaSelfPlay.connectTimeout)");
+					}
+					continue;
+				}
+				sockets.add(socket);
+				inputs.add(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+				outputs.add(new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+				logger.info("Worker "+sockets.size()+"/"+workers+" connected from "+socket.getRemoteSocketAddress());
+			}
+			for (long version=0; version<iterations; version++){
+				long start=System.currentTimeMillis();
+				for (int w=0; w<workers; w++){
+					DataOutputStream out=outputs.get(w);
+					out.writeInt(BATCH);
+					out.writeLong(version);
+					out.writeInt(games);
+					out.writeLong(TequilaTournament.mix(seed+version*workers+w));
+					out.writeUTF(layout.toString());
+					writeWeights(out, snapshot);
+					out.flush();
+				}
+				double averaged[][]=new double [rows][COLUMNS];
+				int wins=0, draws=0, losses=0;
+				for (int w=0; w<workers; w++){
+					DataInputStream in=inputs.get(w);
+					if (in.readLong()!=version){
+						throw new IOException("Worker "+w+" answered for another version");
+					}
+					wins+=in.readInt();
+					draws+=in.readInt();
+					losses+=in.readInt();
+					double delta[][]=readWeights(in, rows);
+					for (int i=0; i<rows; i++){
+						for (int j=0; j<COLUMNS; j++){
+							averaged[i][j]+=delta[i][j]/workers;
+						}
+					}
+				}
+				for (int i=0; i<rows; i++){
+					for (int j=0; j<COLUMNS; j++){
+						averaged[i][j]+=snapshot[i][j];
+					}
+				}
+				snapshot=averaged;
+				bot.thetas=snapshot;
+				bot.storeExperience();
+				long time=Math.max(1, System.currentTimeMillis()-start);
+				logger.info("Version "+(version+1)+": "+wins+"/"+losses+"/"+draws+" (Wins/Losses/Draws), "
+						+String.format("%.2f", workers*games*1000.0/time)+" games/s");
+			}
+			for (DataOutputStream out : outputs){
+				out.writeInt(STOP);
+				out.flush();
+			}
+			stopped=true;
+		} finally {
+			for (Socket socket : sockets){
+				socket.close();
+			}
+			server.close();
+			for (Process process : processes){
+				if (!stopped){
+					process.destroy(); //Workers that did not get STOP might never end.
+				}
+				process.waitFor();
+			}
+		}
+	}
+
+	/*Function: work
+	 * Runs a worker until the coordinator sends STOP.
+	 */
+	static void work(String host, int port) throws IOException{
+		String opponent=System.getProperty("tequilaSelfPlay.opponent", "RandomPlayer");
+		Socket socket=new Socket(host, port);
+		try {
+			DataInputStream in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (in.readInt()==BATCH){
+				long version=in.readLong();
+				int games=in.readInt();
+				long seed=in.readLong();
+				TequilaTurnLayout layout=TequilaTurnLayout.parse(in.readUTF());
+				int rows=layout.rows();
+				double snapshot[][]=readWeights(in, rows);
+				double local[][]=new double [rows][COLUMNS];
+				for (int i=0; i<rows; i++){
+					System.arraycopy(snapshot[i], 0, local[i], 0, COLUMNS);
+				}
+				int results[]=new int [3]; //wins, draws, losses
+				for (int g=0; g<games; g++){
+					seed=TequilaTournament.mix(seed);
+					tequilaBot bot=new tequilaBot();
+					bot.learning=false; //We learn below, without writing the file.
+					bot.useWeights(local, layout);
+					IPlayer other=opponent(opponent, seed, snapshot, layout);
+					Board3D board=new Board3D(TequilaOpeningBook.DIM_SIZE);
+					Match match=(g%2==0) ? new Match(board, bot, other) : new Match(board, other, bot);
+					match.play();
+					bot.addExperience(board);
+					results[(match.getWinner()==null) ? 1 : (match.getWinner()==bot ? 0 : 2)]++;
+				}
+				for (int i=0; i<rows; i++){
+					for (int j=0; j<COLUMNS; j++){
+						local[i][j]-=snapshot[i][j];
+					}
+				}
+				out.writeLong(version);
+				out.writeInt(results[0]);
+				out.writeInt(results[1]);
+				out.writeInt(results[2]);
+				writeWeights(out, local);
+				out.flush();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/*Function: opponent
+	 * The opponent of a game. A tequilaBot opponent (self-play) plays with the snapshot of the batch and does not learn,
+	 * so only the coordinator writes weightsTequilaBot.txt, and the snapshot is not changed by the games.
+	 */
+	static IPlayer opponent(String name, long seed, double snapshot[][], TequilaTurnLayout layout){
+		if (name.equals("tequilaBot")){
+			tequilaBot bot=new tequilaBot();
+			bot.learning=false;
+			bot.useWeights(snapshot, layout);
+			return bot;
+		}
+		return TequilaTournament.newPlayer(name, seed);
+	}
+
+	private static void writeWeights(DataOutputStream out, double weights[][]) throws IOException{
+		for (int i=0; i<weights.length; i++){
+			for (int j=0; j<COLUMNS; j++){
+				out.writeDouble(weights[i][j]);
+			}
+		}
+	}
+
+	private static double[][] readWeights(DataInputStream in, int rows) throws IOException{
+		double weights[][]=new double [rows][COLUMNS];
+		for (int i=0; i<rows; i++){
+			for (int j=0; j<COLUMNS; j++){
+				weights[i][j]=in.readDouble();
+			}
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,234 @@
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.PropertyConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IBoard;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IPlayer;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Board3D;
+import de.ovgu.dke.teaching.ml.tictactoe.game.LoadPlayer;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Match;
+import de.ovgu.dke.teaching.ml.tictactoe.game.Score;
+import de.ovgu.dke.teaching.ml.tictactoe.util.Indexing;
+/**
+ * Parallel replacement for PlayTournament / Tournament.run() of dke-ml-tictactoe.
+ *
+ * Usage: java TequilaTournament [propertiesFile]
+ *
+ * Reads the same tictactoe.properties (from the classpath, or the given file) and plays the same round-robin:
+ * in every round, every player plays every other player once as first and once as second player.
+ * Two further properties are read:
+ *  threads: size of the worker pool, default the number of available processors.
+ *  seed: seed of the tournament, default 0.
+ *
+ * The matches of all rounds are numbered in the order Tournament.run() would play them, and match k goes to
+ * worker k % threads. Every match gets its own player instances, loaded by class name as LoadPlayer does, and
+ * its own seed derived from the tournament seed and k. RandomPlayer is replaced by SeededRandomPlayer, which
+ * chooses moves the same way with a Random seeded per match, so a tournament can be reproduced regardless
+ * of the number of threads. (LearningPlayer initialises its weights with an unseeded Random, which we can't change.)
+ *
+ * Results are merged into one Score per player, synchronizing on the Score.
+ *
+ * Since every match starts from fresh instances, tequilaBot does not learn here (tequilaBot.learn=false),
+ * unless that system property is set explicitly. Otherwise parallel matches would all write weightsTequilaBot.txt.
+ */
+public class TequilaTournament {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaTournament.class);
+
+	private final String playerNames[];
+	private final List<Score> scores=new ArrayList<Score>();
+	private final int boardSize;
+	private final int rounds;
+	private final int threads;
+	private final long seed;
+
+	TequilaTournament(String playerNames[], int boardSize, int rounds, int threads, long seed) throws Exception{
+		this.playerNames=playerNames;
+		this.boardSize=boardSize;
+		this.rounds=rounds;
+		this.threads=threads;
+		this.seed=seed;
+		for (String name : playerNames){
+			scores.add(new Score(LoadPlayer.load(name)));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties log4j=new Properties();
+		InputStream log4jStream=TequilaTournament.class.getClassLoader().getResourceAsStream("log4j.tournament.properties");
+		if (log4jStream!=null){
+			log4j.load(log4jStream);
+			PropertyConfigurator.configure(log4j);
+		}
+		Properties properties=new Properties();
+		InputStream stream=(args.length>0) ? new FileInputStream(args[0])
+				: TequilaTournament.class.getClassLoader().getResourceAsStream("tictactoe.properties");
+		if (stream==null){
+			logger.error("Couldn't find file 'tictactoe.properties'. Check your classpath!");
+			System.exit(1);
+		}
+		try {
+			properties.load(stream);
+		} finally {
+			stream.close();
+		}
+		String names[]=properties.getProperty("player").split(":");
+		if (names.length<2){
+			logger.error("Not enough player for a tournament!");
+			System.exit(1);
+		}
+		if (System.getProperty("tequilaBot.learn")==null){
+			System.setProperty("tequilaBot.learn", "false");
+		}
+		TequilaTournament tournament=new TequilaTournament(names,
+				Integer.parseInt(properties.getProperty("boardsize").trim()),
+				Integer.parseInt(properties.getProperty("rounds").trim()),
+				Integer.parseInt(properties.getProperty("threads", ""+Runtime.getRuntime().availableProcessors()).trim()),
+				Long.parseLong(properties.getProperty("seed", "0").trim()));
+		long start=System.currentTimeMillis();
+		tournament.run();
+		logger.info("Tournament took "+(System.currentTimeMillis()-start)+" ms on "+tournament.threads+" threads");
+	}
+
+	/*Function: run
+	 * Plays all matches on the worker pool and logs the results as Tournament.run() does.
+	 */
+	public List<Score> run() throws InterruptedException, ExecutionException{
+		logger.info("Starting Tournament of "+rounds+" rounds and "+playerNames.length+" players on "+threads+" threads");
+		final List<int[]> matches=new ArrayList<int[]>(); //{first player, second player}
+		for (int round=0; round<rounds; round++){
+			for (int i=0; i<playerNames.length; i++){
+				for (int j=0; j<playerNames.length; j++){
+					if (i!=j){
+						matches.add(new int[] {i,j});
+					}
+				}
+			}
+		}
+		final int winners[]=new int [matches.size()]; //Index of the winner of each match, -1 for draws.
+		ExecutorService pool=Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> shards=new ArrayList<Future<?>>();
+			for (int w=0; w<threads; w++){
+				final int shard=w;
+				shards.add(pool.submit(new Runnable() {
+					public void run() {
+						for (int k=shard; k<matches.size(); k+=threads){
+							winners[k]=play(k, matches.get(k)[0], matches.get(k)[1]);
+						}
+					}
+				}));
+			}
+			for (Future<?> shard : shards){
+				shard.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		//Logged in match order, so that the log does not depend on the scheduling either.
+		for (int k=0; k<matches.size(); k++){
+			String first=scores.get(matches.get(k)[0]).getPlayer().getName();
+			String second=scores.get(matches.get(k)[1]).getPlayer().getName();
+			if (winners[k]<0){
+				logger.info("Match "+k+": Draw between "+first+" and "+second);
+			}
+			else {
+				logger.info("Match "+k+": "+scores.get(winners[k]).getPlayer().getName()+" won against "
+						+(winners[k]==matches.get(k)[0] ? second : first));
+			}
+		}
+		List<Score> results=new LinkedList<Score>(scores);
+		Collections.sort(results);
+		StringBuffer table=new StringBuffer();
+		for (Score score : results){
+			table.append(score.toString()).append("\n");
+		}
+		logger.info("Tournament ended with the following scores:\nWins/Losses/Draws\n"+table.substring(0, table.length()-1));
+		return results;
+	}
+
+	//Plays match k between fresh instances of the two players and adds the result to their scores.
+	private int play(int k, int first, int second){
+		long matchSeed=mix(seed+k);
+		IPlayer player1=newPlayer(playerNames[first], matchSeed);
+		IPlayer player2=newPlayer(playerNames[second], mix(matchSeed));
+		Match match=new Match(new Board3D(boardSize), player1, player2);
+		match.play();
+		IPlayer winner=match.getWinner();
+		int result=(winner==null) ? -1 : (winner==player1 ? first : second);
+		Score firstScore=scores.get(first);
+		Score secondScore=scores.get(second);
+		synchronized (firstScore) {
+			if (result<0) firstScore.addDraws(); else if (result==first) firstScore.addWin(); else firstScore.addLoss();
+		}
+		synchronized (secondScore) {
+			if (result<0) secondScore.addDraws(); else if (result==second) secondScore.addWin(); else secondScore.addLoss();
+		}
+		return result;
+	}
+
+	static IPlayer newPlayer(String name, long seed){
+		if (name.equals("RandomPlayer")){
+			return new SeededRandomPlayer(seed);
+		}
+		try {
+			return LoadPlayer.load(name);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not load player '"+name+"'", e);
+		}
+	}
+
+	//SplitMix64 finaliser, to spread consecutive match numbers over unrelated seeds.
+	static long mix(long z){
+		z=(z^(z>>>30))*0xbf58476d1ce4e5b9L;
+		z=(z^(z>>>27))*0x94d049bb133111ebL;
+		return z^(z>>>31);
+	}
+
+	/*RandomPlayer of dke-ml-tictactoe with a seeded Random: picks the n-th empty field, n drawn uniformly.*/
+	static class SeededRandomPlayer implements IPlayer {
+		private final Random random;
+
+		SeededRandomPlayer(long seed){
+			this.random=new Random(seed);
+		}
+
+		public String getName() {
+			return "Random Player";
+		}
+
+		public int[] makeMove(IBoard board) {
+			int position[]=new int [board.getDimensions()];
+			int empty=0;
+			do {
+				if (board.getFieldValue(position)==null){
+					empty++;
+				}
+			} while (Indexing.incrementIndices(position, board.getSize()));
+			int n=random.nextInt(empty);
+			position=new int [board.getDimensions()];
+			do {
+				if (board.getFieldValue(position)==null){
+					if (n==0){
+						return position;
+					}
+					n--;
+				}
+			} while (Indexing.incrementIndices(position, board.getSize()));
+			throw new RuntimeException("Random Player was not able to select an empty field");
+		}
+
+		public void onMatchEnds(IBoard board) {
+		}
+	}
+}
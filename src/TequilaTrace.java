@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import de.ovgu.dke.teaching.ml.tictactoe.api.IBoard;
+/**
+ * Trace of the decisions of tequilaBot, so that a move can be replayed offline (see TequilaReplay).
+ *
+ * Configured with system properties:
+ *  tequilaBot.trace: the trace file. If it is not set there is no trace, and get() returns null.
+ *  tequilaBot.traceCapacity: number of records kept, default 65536 (about 5.8 MB). Older records are overwritten.
+ *
+ * The file is a ring of fixed size records, memory-mapped, so recording a move costs a few writes to memory and
+ * no system call; the OS writes the pages back, even if the JVM dies. A record holds everything makeMove decides on:
+ * the position (2 bits per cell), the weights (by checksum), the lookahead and whether there was an opening book.
+ * The weights themselves are written once per checksum into the directory <trace file>.weights, by a background
+ * thread, so a move never waits for them. A weights file is deleted again once no record in the ring refers to it, so the
+ * directory holds at most one file per record, and usually only a few (one per version of the weights that was played).
+ *
+ * File layout (big endian):
+ *  header: int MAGIC, int VERSION, int capacity, int RECORD_SIZE, long records written, 8 bytes reserved
+ *  record: long sequence+1 (0 for an empty slot), long time (ms), long position hash, long weights version,
+ *          long weights checksum, long latency (ns), byte source, byte move (cell), byte ply, byte book,
+ *          int lookahead, 32 bytes of cells (4 per byte, 0 empty, 1 ours, 2 the opponent's)
+ */
+public class TequilaTrace {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaTrace.class);
+
+	static final int MAGIC=0x54515452; //"TQTR"
+	static final int VERSION=1;
+	static final int HEADER_SIZE=32;
+	static final int RECORD_SIZE=88;
+	static final int CELL_BYTES=32;
+
+	/*Decision sources, i.e. which part of makeMove chose the move.*/
+	static final byte FIRST_MOVE=0;
+	static final byte BOOK=1;
+	static final byte WIN=2;
+	static final byte SELECT=3;
+	static final String SOURCES[]=new String [] {"first move", "book", "win", "selectMove"};
+
+	private static TequilaTrace instance=null;
+	private static boolean configured=false;
+
+	private final Path file;
+	private final Path weightsDirectory;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private long written;
+	private final Set<Long> storedWeights=new HashSet<Long>(); //Checksums whose weights are written (or queued to be).
+	private final Map<Long,Integer> references=new HashMap<Long,Integer>(); //Number of records in the ring for each checksum.
+	private final ExecutorService weightsWriter=Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread=new Thread(runnable, "TequilaTrace weights");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private TequilaTrace(Path file, MappedByteBuffer buffer, int capacity, long written){
+		this.file=file;
+		this.weightsDirectory=weightsDirectory(file);
+		this.buffer=buffer;
+		this.capacity=capacity;
+		this.written=written;
+		for (int i=0; i<capacity; i++){
+			int offset=HEADER_SIZE+i*RECORD_SIZE;
+			if (buffer.getLong(offset)!=0){
+				long checksum=buffer.getLong(offset+32);
+				Integer count=references.get(checksum);
+				references.put(checksum, (count==null) ? 1 : count+1);
+				storedWeights.add(checksum); //Written by the run that wrote the record.
+			}
+		}
+		weightsWriter.execute(new Runnable() {
+			public void run() {
+				deleteUnreferencedWeights();
+			}
+		});
+	}
+
+	/*Function: get
+	 * Returns the trace of this JVM, or null if tequilaBot.trace is not set.
+	 */
+	public static synchronized TequilaTrace get(){
+		if (!configured){
+			configured=true;
+			String fileName=System.getProperty("tequilaBot.trace");
+			if (fileName!=null && !fileName.isEmpty()){
+				try {
+					instance=open(Paths.get(fileName), Integer.getInteger("tequilaBot.traceCapacity", 65536));
+					logger.info("Tracing moves to "+fileName+" ("+instance.written+" records so far)");
+					Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+						public void run() {
+							instance.close();
+						}
+					}));
+				} catch (IOException e) {
+					logger.error("Could not open trace "+fileName, e);
+				}
+			}
+		}
+		return instance;
+	}
+
+	/*Function: open
+	 * Maps a trace file, going on after its last record if it has the given capacity, or starting a new one otherwise.
+	 */
+	static TequilaTrace open(Path file, int capacity) throws IOException{
+		long size=HEADER_SIZE+(long)capacity*RECORD_SIZE;
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			boolean valid=(channel.size()==size);
+			MappedByteBuffer buffer=channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			valid=valid && buffer.getInt(0)==MAGIC && buffer.getInt(4)==VERSION && buffer.getInt(8)==capacity
+					&& buffer.getInt(12)==RECORD_SIZE;
+			if (!valid){
+				for (long i=0; i<size; i++){
+					buffer.put((int)i, (byte)0);
+				}
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, capacity);
+				buffer.putInt(12, RECORD_SIZE);
+				buffer.putLong(16, 0);
+			}
+			return new TequilaTrace(file, buffer, capacity, buffer.getLong(16));
+		}
+	}
+
+	/*Function: record
+	 * Records a decision: the board before the move, the move, what chose it and how long it took.
+	 * thetas and layout are the weights the bot played with; they are stored the first time their checksum is seen.
+	 */
+	public synchronized void record(IBoard board, int move[], byte source, TequilaWeights weights, double thetas[][],
+			TequilaTurnLayout layout, long checksum, int lookahead, boolean book, long latency){
+		byte cells[]=TequilaOpeningBook.toCells(board.getMoveHistory());
+		if (storedWeights.add(checksum)){
+			//A learning bot changes its thetas after the match, so the writer gets a copy.
+			final double copy[][]=new double [thetas.length][];
+			for (int i=0; i<thetas.length; i++){
+				copy[i]=thetas[i].clone();
+			}
+			final long stored=checksum;
+			final TequilaTurnLayout storedLayout=layout;
+			weightsWriter.execute(new Runnable() {
+				public void run() {
+					storeWeights(stored, copy, storedLayout);
+				}
+			});
+		}
+		write(System.currentTimeMillis(), TequilaOpeningBook.hash(cells), (weights==null) ? -1 : weights.getVersion(), checksum,
+				latency, source, TequilaOpeningBook.toCell(move), board.getMoveHistory().size(), book, lookahead, cells);
+	}
+
+	//Adds a record read from another trace, e.g. to keep it as a benchmark case.
+	synchronized void add(Record record){
+		write(record.time, record.hash, record.weightsVersion, record.weightsChecksum, record.latency, record.source,
+				record.move, record.ply, record.book, record.lookahead, record.cells);
+		buffer.force();
+	}
+
+	//Writes the next record, overwriting the oldest one if the ring is full.
+	private void write(long time, long hash, long weightsVersion, long checksum, long latency, byte source, int move,
+			int ply, boolean book, int lookahead, byte cells[]){
+		int offset=HEADER_SIZE+(int)(written%capacity)*RECORD_SIZE;
+		if (buffer.getLong(offset)!=0){
+			release(buffer.getLong(offset+32));
+		}
+		Integer count=references.get(checksum);
+		references.put(checksum, (count==null) ? 1 : count+1);
+		buffer.putLong(offset, 0); //Invalid until the record is complete.
+		buffer.putLong(offset+8, time);
+		buffer.putLong(offset+16, hash);
+		buffer.putLong(offset+24, weightsVersion);
+		buffer.putLong(offset+32, checksum);
+		buffer.putLong(offset+40, latency);
+		buffer.put(offset+48, source);
+		buffer.put(offset+49, (byte)move);
+		buffer.put(offset+50, (byte)ply);
+		buffer.put(offset+51, (byte)(book ? 1 : 0));
+		buffer.putInt(offset+52, lookahead);
+		for (int b=0; b<CELL_BYTES; b++){
+			int packed=0;
+			for (int k=0; k<4 && b*4+k<TequilaOpeningBook.POS_COUNT; k++){
+				packed|=cells[b*4+k]<<(2*k);
+			}
+			buffer.put(offset+56+b, (byte)packed);
+		}
+		buffer.putLong(offset, written+1);
+		written++;
+		buffer.putLong(16, written);
+	}
+
+	//Drops the reference of a record that is overwritten, and deletes its weights when it was the last one.
+	private void release(final long checksum){
+		int count=references.get(checksum)-1;
+		if (count>0){
+			references.put(checksum, count);
+			return;
+		}
+		references.remove(checksum);
+		if (storedWeights.remove(checksum)){
+			weightsWriter.execute(new Runnable() {
+				public void run() {
+					try {
+						Files.deleteIfExists(weightsFile(weightsDirectory, checksum));
+					} catch (IOException e) {
+						logger.error("Could not delete the weights of the trace", e);
+					}
+				}
+			});
+		}
+	}
+
+	//Deletes the weights files no record of the ring refers to, e.g. left by a run that was killed. Run by the writer.
+	private void deleteUnreferencedWeights(){
+		Set<Long> referenced;
+		synchronized (this){
+			referenced=new HashSet<Long>(references.keySet());
+		}
+		if (!Files.isDirectory(weightsDirectory)){
+			return;
+		}
+		try (DirectoryStream<Path> files=Files.newDirectoryStream(weightsDirectory, "*.txt")) {
+			for (Path weightsFile : files){
+				String name=weightsFile.getFileName().toString();
+				try {
+					if (!referenced.contains(Long.parseUnsignedLong(name.substring(0, name.length()-4), 16))){
+						Files.delete(weightsFile);
+					}
+				} catch (NumberFormatException e) {
+					//Not one of ours.
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Could not clean up the weights of the trace", e);
+		}
+	}
+
+	//Writes the pending weights and the ring to disk. Called at shutdown.
+	void close(){
+		weightsWriter.shutdown();
+		try {
+			weightsWriter.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		buffer.force();
+	}
+
+	//Writes the weights to <trace file>.weights/<checksum>.txt, unless they are already there. Run by the writer.
+	private void storeWeights(long checksum, double thetas[][], TequilaTurnLayout layout){
+		Path weightsFile=weightsFile(weightsDirectory, checksum);
+		if (Files.exists(weightsFile)){
+			return;
+		}
+		try {
+			Files.createDirectories(weightsDirectory);
+			Path tmp=weightsDirectory.resolve(weightsFile.getFileName()+".tmp");
+			TequilaWeights.write(tmp, thetas, layout);
+			Files.move(tmp, weightsFile, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.error("Could not store the weights of the trace", e);
+		}
+	}
+
+	static Path weightsDirectory(Path file){
+		return file.resolveSibling(file.getFileName()+".weights");
+	}
+
+	static Path weightsFile(Path weightsDirectory, long checksum){
+		return weightsDirectory.resolve(String.format("%016x.txt", checksum));
+	}
+
+	public Path getFile(){
+		return file;
+	}
+
+	/*Function: read
+	 * Reads all records of a trace file, oldest first.
+	 */
+	static List<Record> read(Path file) throws IOException{
+		List<Record> records=new ArrayList<Record>();
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (channel.size()<HEADER_SIZE || buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=VERSION
+					|| buffer.getInt(12)!=RECORD_SIZE || channel.size()!=HEADER_SIZE+(long)buffer.getInt(8)*RECORD_SIZE){
+				throw new IOException(file+" is not a trace file");
+			}
+			int capacity=buffer.getInt(8);
+			for (int i=0; i<capacity; i++){
+				int offset=HEADER_SIZE+i*RECORD_SIZE;
+				if (buffer.getLong(offset)!=0){
+					records.add(new Record(buffer, offset));
+				}
+			}
+		}
+		Collections.sort(records, new Comparator<Record>() {
+			public int compare(Record a, Record b) {
+				return Long.compare(a.sequence, b.sequence);
+			}
+		});
+		return records;
+	}
+
+	/*One decision of a trace.*/
+	static class Record {
+		final long sequence;
+		final long time;
+		final long hash;
+		final long weightsVersion;
+		final long weightsChecksum;
+		final long latency;
+		final byte source;
+		final int move;
+		final int ply;
+		final boolean book;
+		final int lookahead;
+		final byte cells[]=new byte [TequilaOpeningBook.POS_COUNT];
+
+		private Record(MappedByteBuffer buffer, int offset){
+			sequence=buffer.getLong(offset)-1;
+			time=buffer.getLong(offset+8);
+			hash=buffer.getLong(offset+16);
+			weightsVersion=buffer.getLong(offset+24);
+			weightsChecksum=buffer.getLong(offset+32);
+			latency=buffer.getLong(offset+40);
+			source=buffer.get(offset+48);
+			move=buffer.get(offset+49)&0xff;
+			ply=buffer.get(offset+50)&0xff;
+			book=(buffer.get(offset+51)!=0);
+			lookahead=buffer.getInt(offset+52);
+			for (int c=0; c<TequilaOpeningBook.POS_COUNT; c++){
+				cells[c]=(byte)((buffer.get(offset+56+c/4)>>(2*(c%4)))&3);
+			}
+		}
+
+		public String toString(){
+			int position[]=TequilaOpeningBook.toPosition(move);
+			return String.format("#%d ply %d: %s played {%d,%d,%d} in %.3f ms (weights v%d %016x, lookahead %d%s)",
+					sequence, ply, SOURCES[source], position[0], position[1], position[2], latency/1e6,
+					weightsVersion, weightsChecksum, lookahead, book ? ", book" : "");
+		}
+	}
+}
@@ -0,0 +1,187 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+/**
+ * Asynchronous, sampled log of what tequilaBot learns, one CSV line per learned turn:
+ *  game,turn,score,target,error,f0,...,f13
+ * where score is the score of the board before the update, target the value y of the game, error = target-score,
+ * and f0-f13 the features X0-X13 from TequilaFeatures.
+ *
+ * Configured with system properties:
+ *  tequilaBot.trainingLog: the CSV file. If it is not set there is no log, and get() returns null, so that
+ *                          addExperience only pays for a null check per game.
+ *  tequilaBot.trainingLogEvery: log only every Nth game (default 1, i.e. every game).
+ *
+ * Records go into a preallocated ring buffer of primitive arrays. Bots (possibly on several threads) claim a slot
+ * with a CAS on head, fill it and publish it by setting its sequence. A daemon thread writes published records to
+ * the file in order; when there are none it flushes the file and sleeps until the next record wakes it.
+ * When the buffer is full, records are dropped and counted instead of blocking the game.
+ */
+public class TequilaTrainingLog {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaTrainingLog.class);
+
+	static final int CAPACITY=1<<14; //Records, must be a power of 2.
+	static final int FEATURES=TequilaFeatures.COUNT;
+
+	private static TequilaTrainingLog instance=null;
+	private static boolean configured=false;
+
+	private final int every;
+	private final Writer writer;
+	private final AtomicLong games=new AtomicLong();
+	private final AtomicLong head=new AtomicLong(); //Next slot to claim.
+	private final AtomicLong dropped=new AtomicLong();
+	private volatile long tail=0; //Next slot to write, only advanced by the writer thread.
+	private volatile boolean closed=false;
+	private volatile boolean idle=false; //Whether the writer thread sleeps (or is about to), waiting for a record.
+	private final Thread writerThread;
+
+	/*The ring buffer: slot i holds record number sequence[i]-1 once it is published.*/
+	private final AtomicLongArray sequence=new AtomicLongArray(CAPACITY);
+	private final long game[]=new long [CAPACITY];
+	private final int turn[]=new int [CAPACITY];
+	private final double score[]=new double [CAPACITY];
+	private final double target[]=new double [CAPACITY];
+	private final int features[]=new int [CAPACITY*FEATURES];
+
+	private TequilaTrainingLog(String fileName, int every) throws IOException{
+		this.every=Math.max(1, every);
+		this.writer=new BufferedWriter(new FileWriter(fileName));
+		StringBuilder header=new StringBuilder("game,turn,score,target,error");
+		for (int f=0; f<FEATURES; f++){
+			header.append(",f").append(f);
+		}
+		writer.write(header.append('\n').toString());
+		writerThread=new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "TequilaTrainingLog");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}));
+	}
+
+	/*Function: get
+	 * Returns the log of this JVM, or null if tequilaBot.trainingLog is not set.
+	 */
+	public static synchronized TequilaTrainingLog get(){
+		if (!configured){
+			configured=true;
+			String fileName=System.getProperty("tequilaBot.trainingLog");
+			if (fileName!=null && !fileName.isEmpty()){
+				try {
+					instance=new TequilaTrainingLog(fileName, Integer.getInteger("tequilaBot.trainingLogEvery", 1));
+					logger.info("Logging every "+instance.every+". game of training to "+fileName);
+				} catch (IOException e) {
+					logger.error("Could not open training log "+fileName, e);
+				}
+			}
+		}
+		return instance;
+	}
+
+	/*Function: sampleGame
+	 * Counts a game, and returns its number if it is to be logged, or -1 otherwise.
+	 */
+	public long sampleGame(){
+		long number=games.getAndIncrement();
+		return (number%every==0) ? number : -1;
+	}
+
+	/*Function: record
+	 * Adds a record without blocking; drops it if the writer can't keep up.
+	 */
+	public void record(long gameNumber, int turnNumber, double scoreValue, double y, int vars[]){
+		long slot;
+		do {
+			slot=head.get();
+			if (slot-tail>=CAPACITY || closed){
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(slot, slot+1));
+		int i=(int)(slot&(CAPACITY-1));
+		game[i]=gameNumber;
+		turn[i]=turnNumber;
+		score[i]=scoreValue;
+		target[i]=y;
+		System.arraycopy(vars, 0, features, i*FEATURES, FEATURES);
+		sequence.set(i, slot+1); //A volatile write, so the writer either sees it or we see that it is idle.
+		if (idle){
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	//Writer thread: writes published records in order, flushes whenever it runs out of them and then sleeps until
+	//record or close wakes it up.
+	private void drain(){
+		StringBuilder line=new StringBuilder(128);
+		boolean flushed=true;
+		while (true){
+			long next=tail;
+			int i=(int)(next&(CAPACITY-1));
+			if (sequence.get(i)!=next+1){
+				if (closed && next==head.get()){
+					return;
+				}
+				if (!flushed){
+					try {
+						writer.flush();
+					} catch (IOException e) {
+						logger.error("Could not write the training log", e);
+					}
+					flushed=true;
+				}
+				idle=true;
+				if (sequence.get(i)!=next+1 && !closed){ //Checked again, as a record may have come before idle was set.
+					LockSupport.parkNanos(this, 1000000000L); //The timeout is only a safety net.
+				}
+				idle=false;
+				continue;
+			}
+			flushed=false;
+			line.setLength(0);
+			line.append(game[i]).append(',').append(turn[i]).append(',').append(score[i]).append(',')
+				.append(target[i]).append(',').append(target[i]-score[i]);
+			for (int f=0; f<FEATURES; f++){
+				line.append(',').append(features[i*FEATURES+f]);
+			}
+			line.append('\n');
+			try {
+				writer.write(line.toString());
+			} catch (IOException e) {
+				logger.error("Could not write the training log", e);
+			}
+			tail=next+1;
+		}
+	}
+
+	//Stops taking records, waits for the writer thread to write the rest and closes the file.
+	void close(){
+		if (closed){
+			return;
+		}
+		closed=true;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join(10000);
+			writer.close();
+		} catch (InterruptedException | IOException e) {
+			logger.error("Could not close the training log", e);
+		}
+		if (dropped.get()>0){
+			logger.warn("Training log dropped "+dropped.get()+" records");
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+/**
+ * How the 125 turns of a game share the rows of weights of tequilaBot.
+ *
+ * Originally every turn had a row of its own. Since we only learn from every other turn, and late turns are rarely
+ * reached, most of those rows are barely trained. A layout maps the turns onto fewer rows, in one of two ways:
+ *  buckets:p0:p1:...: row r is used for the turns from pr up to (not including) pr+1, the last row up to turn 124.
+ *  anchors:a0:a1:...: row r holds the weights at turn ar; between two anchors the weights are interpolated linearly,
+ *                     before the first and after the last anchor the weights of that anchor are used.
+ * The points must be increasing turns from 0 to 124, and buckets must start with 0.
+ * The layout of one row per turn (buckets:0:1:...:124) is IDENTITY.
+ *
+ * The layout is given in the first line of the weights file as "#turns <layout>" (see TequilaWeights), and a bot
+ * can be told to convert the weights it loads to another layout with -DtequilaBot.turnLayout=<layout>.
+ *
+ * For every turn t the layout keeps the lower and upper row and the share of the upper one, so the scorer reads one
+ * row (buckets) or blends two (anchors), and the learning update splits the change of a turn by the same shares.
+ */
+public class TequilaTurnLayout {
+	static final int TURNS=125;
+	static final TequilaTurnLayout IDENTITY=identity();
+
+	private final boolean anchors;
+	private final int points[];
+	private final int lower[]=new int [TURNS];
+	private final int upper[]=new int [TURNS];
+	private final double share[]=new double [TURNS]; //Share of the upper row in turn t, 0 for buckets.
+
+	private TequilaTurnLayout(boolean anchors, int points[]){
+		this.anchors=anchors;
+		this.points=points;
+		int r=0;
+		for (int t=0; t<TURNS; t++){
+			while (r+1<points.length && points[r+1]<=t){
+				r++;
+			}
+			lower[t]=r;
+			upper[t]=r;
+			if (anchors && r+1<points.length && t>points[r]){
+				upper[t]=r+1;
+				share[t]=(double)(t-points[r])/(points[r+1]-points[r]);
+			}
+		}
+	}
+
+	private static TequilaTurnLayout identity(){
+		int points[]=new int [TURNS];
+		for (int t=0; t<TURNS; t++){
+			points[t]=t;
+		}
+		return new TequilaTurnLayout(false, points);
+	}
+
+	/*Function: parse
+	 * Reads a layout as written by toString, e.g. "buckets:0:10:30:60" or "anchors:0:20:60:124".
+	 * Throws IllegalArgumentException if it is not valid.
+	 */
+	static TequilaTurnLayout parse(String layout){
+		String parts[]=layout.trim().split(":");
+		boolean anchors=parts[0].equals("anchors");
+		if ((!anchors && !parts[0].equals("buckets")) || parts.length<2){
+			throw new IllegalArgumentException("Invalid turn layout '"+layout+"', expected buckets:... or anchors:...");
+		}
+		int points[]=new int [parts.length-1];
+		for (int i=0; i<points.length; i++){
+			try {
+				points[i]=Integer.parseInt(parts[i+1].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid turn '"+parts[i+1]+"' in turn layout '"+layout+"'");
+			}
+			if (points[i]<0 || points[i]>=TURNS || (i>0 && points[i]<=points[i-1])){
+				throw new IllegalArgumentException("The turns of turn layout '"+layout+"' must increase from 0 to "+(TURNS-1));
+			}
+		}
+		if (!anchors && points[0]!=0){
+			throw new IllegalArgumentException("The first bucket of turn layout '"+layout+"' must start at turn 0");
+		}
+		TequilaTurnLayout parsed=new TequilaTurnLayout(anchors, points);
+		return parsed.equals(IDENTITY) ? IDENTITY : parsed;
+	}
+
+	//The number of rows of weights.
+	int rows(){
+		return points.length;
+	}
+
+	/*Function: row
+	 * The weights for a turn: the row itself for buckets (to be read only), or the blend of two rows written into scratch.
+	 */
+	double[] row(double weights[][], int turn, double scratch[]){
+		if (share[turn]==0){
+			return weights[lower[turn]];
+		}
+		double low[]=weights[lower[turn]];
+		double high[]=weights[upper[turn]];
+		double s=share[turn];
+		for (int j=0; j<scratch.length; j++){
+			scratch[j]=(1-s)*low[j]+s*high[j];
+		}
+		return scratch;
+	}
+
+	/*Function: update
+	 * Adds step*vars (and step for the independent variable, the last column) to the weights of a turn,
+	 * split between its rows by their shares.
+	 */
+	void update(double weights[][], int turn, int vars[], double step){
+		double s=share[turn];
+		add(weights[lower[turn]], vars, (1-s)*step);
+		if (s>0){
+			add(weights[upper[turn]], vars, s*step);
+		}
+	}
+
+	private static void add(double row[], int vars[], double step){
+		int bias=row.length-1;
+		for (int f=0; f<bias; f++){
+			row[f]=row[f]+step*vars[f];
+		}
+		row[bias]=row[bias]+step;
+	}
+
+	/*Function: convert
+	 * Converts weights of another layout to this one: every row gets the mean of the weights of the turns it is used in,
+	 * weighted by its share in them.
+	 */
+	double[][] convert(double weights[][], TequilaTurnLayout from){
+		int columns=weights[0].length;
+		double converted[][]=new double [rows()][columns];
+		double total[]=new double [rows()];
+		double scratch[]=new double [columns];
+		for (int t=0; t<TURNS; t++){
+			double turnWeights[]=from.row(weights, t, scratch);
+			for (int j=0; j<columns; j++){
+				converted[lower[t]][j]+=(1-share[t])*turnWeights[j];
+				converted[upper[t]][j]+=share[t]*turnWeights[j];
+			}
+			total[lower[t]]+=1-share[t];
+			total[upper[t]]+=share[t];
+		}
+		for (int r=0; r<rows(); r++){
+			for (int j=0; j<columns; j++){
+				converted[r][j]/=total[r];
+			}
+		}
+		return converted;
+	}
+
+	public boolean equals(Object other){
+		return (other instanceof TequilaTurnLayout) && ((TequilaTurnLayout)other).anchors==anchors
+				&& Arrays.equals(((TequilaTurnLayout)other).points, points);
+	}
+
+	public int hashCode(){
+		return Arrays.hashCode(points)+(anchors ? 1 : 0);
+	}
+
+	public String toString(){
+		StringBuilder layout=new StringBuilder(anchors ? "anchors" : "buckets");
+		for (int point : points){
+			layout.append(':').append(point);
+		}
+		return layout.toString();
+	}
+}
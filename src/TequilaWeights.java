@@ -0,0 +1,180 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+/**
+ * An immutable, versioned snapshot of the weights of tequilaBot (rows of W0-W14, see tequilaBot), and of the
+ * TequilaTurnLayout that tells which row is used in which turn.
+ *
+ * Snapshots are created by TequilaWeightsWatcher whenever the weights file changes, and shared by all bots of the
+ * JVM. The array returned by values() must therefore never be modified; bots that learn work on copyValues().
+ *
+ * Besides its version, a snapshot counts the moves decided with it, as a simple metric of how much it was used.
+ */
+public class TequilaWeights {
+	static final int COLUMNS=TequilaFeatures.COUNT+1;
+	static final int LEGACY_COLUMNS=9; //W0-W7 and the independent variable, before the features X8-X13.
+
+	private final double values[][];
+	private final TequilaTurnLayout layout;
+	private final long version;
+	private final String source;
+	private final long loadedAt;
+	private final AtomicLong decisions=new AtomicLong();
+
+	private TequilaWeights(double values[][], TequilaTurnLayout layout, long version, String source){
+		this.values=values;
+		this.layout=layout;
+		this.version=version;
+		this.source=source;
+		this.loadedAt=System.currentTimeMillis();
+	}
+
+	/*Function: load
+	 * Reads and validates a weights file: an optional first line "#turns <layout>" (without it, one row per turn),
+	 * and a line of 15 finite numbers separated by commas for every row of the layout.
+	 * Lines of 9 numbers (W0-W7 and the independent variable) are widened with 0 weights for X8-X13,
+	 * so older files score exactly as before.
+	 * Throws IOException if the file can't be read or is not valid, e.g. while it is still being written.
+	 */
+	static TequilaWeights load(Path file, long version) throws IOException{
+		TequilaTurnLayout layout=TequilaTurnLayout.IDENTITY;
+		double values[][]=new double [layout.rows()][COLUMNS];
+		BufferedReader reader=Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		try {
+			String line;
+			int i=0;
+			while ((line=reader.readLine())!=null){
+				if (line.trim().isEmpty()){
+					continue;
+				}
+				if (line.startsWith("#turns ") && i==0){
+					try {
+						layout=TequilaTurnLayout.parse(line.substring("#turns ".length()));
+					} catch (IllegalArgumentException e) {
+						throw new IOException(file+": "+e.getMessage());
+					}
+					values=new double [layout.rows()][COLUMNS];
+					continue;
+				}
+				if (i>=values.length){
+					throw new IOException(file+" has more than "+values.length+" rows");
+				}
+				String parts[]=line.split(",");
+				if (parts.length!=COLUMNS && parts.length!=LEGACY_COLUMNS){
+					throw new IOException(file+": row "+i+" has "+parts.length+" instead of "+COLUMNS+" weights");
+				}
+				for (int j=0; j<parts.length; j++){
+					//The independent variable is always the last column.
+					int column=(j==parts.length-1) ? COLUMNS-1 : j;
+					try {
+						values[i][column]=Double.parseDouble(parts[j].trim());
+					} catch (NumberFormatException e) {
+						throw new IOException(file+": row "+i+" has an invalid weight '"+parts[j]+"'");
+					}
+					if (Double.isNaN(values[i][column]) || Double.isInfinite(values[i][column])){
+						throw new IOException(file+": row "+i+" has a weight that is not finite");
+					}
+				}
+				i++;
+			}
+			if (i!=values.length){
+				throw new IOException(file+" has "+i+" instead of "+values.length+" rows");
+			}
+		} finally {
+			reader.close();
+		}
+		return new TequilaWeights(values, layout, version, file.toString());
+	}
+
+	/*Function: write
+	 * Writes weights as load reads them, one row of comma separated values per line, after the layout unless it is
+	 * the identity (so that files of one row per turn stay as they were).
+	 */
+	static void write(Path file, double values[][], TequilaTurnLayout layout) throws IOException{
+		BufferedWriter writer=Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+		try {
+			if (!layout.equals(TequilaTurnLayout.IDENTITY)){
+				writer.write("#turns "+layout+"\n");
+			}
+			for (int i=0; i<values.length; i++){
+				StringBuilder line=new StringBuilder();
+				for (int j=0; j<COLUMNS; j++){
+					line.append(j==0 ? "" : ",").append(values[i][j]);
+				}
+				writer.write(line.append('\n').toString());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	//FNV-1a over the layout and the bits of all weights, to tell which weights a move was made with (see TequilaTrace).
+	static long checksum(double values[][], TequilaTurnLayout layout){
+		long h=0xcbf29ce484222325L^layout.hashCode();
+		for (int i=0; i<values.length; i++){
+			for (int j=0; j<COLUMNS; j++){
+				h^=Double.doubleToLongBits(values[i][j]);
+				h*=0x100000001b3L;
+			}
+		}
+		return h;
+	}
+
+	//The weights themselves, shared: must not be modified.
+	double[][] values(){
+		return values;
+	}
+
+	TequilaTurnLayout getLayout(){
+		return layout;
+	}
+
+	double[][] copyValues(){
+		double copy[][]=new double [values.length][];
+		for (int i=0; i<values.length; i++){
+			copy[i]=values[i].clone();
+		}
+		return copy;
+	}
+
+	boolean sameValues(TequilaWeights other){
+		if (!layout.equals(other.layout)){
+			return false;
+		}
+		for (int i=0; i<values.length; i++){
+			if (!Arrays.equals(values[i], other.values[i])){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long getVersion(){
+		return version;
+	}
+
+	public String getSource(){
+		return source;
+	}
+
+	public long getLoadedAt(){
+		return loadedAt;
+	}
+
+	public long getDecisions(){
+		return decisions.get();
+	}
+
+	void countDecision(){
+		decisions.incrementAndGet();
+	}
+
+	public String toString(){
+		return "weights v"+version+" from "+source+" ("+decisions.get()+" decisions)";
+	}
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+/**
+ * Keeps the current TequilaWeights snapshot of a weights file, and reloads it when the file changes.
+ *
+ * There is one watcher per file and JVM (see get), so bots created for every match share the snapshot instead of
+ * parsing the file again. A daemon thread waits on a WatchService for the directory of the file; when the file is
+ * created or modified it is loaded and validated, and if it is valid and different, swapped in as a new version.
+ * Invalid files (e.g. half written ones) are rejected and the current snapshot is kept.
+ * Bots pick up the new snapshot before their next move, so play never waits for a reload.
+ *
+ * Watching can be switched off with -DtequilaBot.watchWeights=false; the file is then only loaded once.
+ */
+public class TequilaWeightsWatcher implements Runnable {
+	private static final Logger logger=LoggerFactory.getLogger(TequilaWeightsWatcher.class);
+	private static final Map<Path,TequilaWeightsWatcher> watchers=new HashMap<Path,TequilaWeightsWatcher>();
+
+	private final Path file;
+	private final AtomicReference<TequilaWeights> current=new AtomicReference<TequilaWeights>();
+	private final AtomicLong versions=new AtomicLong();
+	private final AtomicLong rejected=new AtomicLong();
+	private WatchService watchService=null;
+
+	private TequilaWeightsWatcher(Path file){
+		this.file=file;
+		reload();
+	}
+
+	/*Function: get
+	 * Returns the watcher of the given file, starting it on first use.
+	 */
+	public static synchronized TequilaWeightsWatcher get(String fileName){
+		Path file=Paths.get(fileName).toAbsolutePath().normalize();
+		TequilaWeightsWatcher watcher=watchers.get(file);
+		if (watcher==null){
+			watcher=new TequilaWeightsWatcher(file);
+			if (!"false".equals(System.getProperty("tequilaBot.watchWeights"))){
+				watcher.start();
+			}
+			watchers.put(file, watcher);
+		}
+		return watcher;
+	}
+
+	//The current snapshot, or null if no valid file was loaded yet.
+	public TequilaWeights current(){
+		return current.get();
+	}
+
+	public long getRejected(){
+		return rejected.get();
+	}
+
+	private void start(){
+		try {
+			watchService=FileSystems.getDefault().newWatchService();
+			file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			logger.warn("Can't watch "+file+", weights will not be reloaded", e);
+			return;
+		}
+		Thread thread=new Thread(this, "TequilaWeightsWatcher "+file.getFileName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run(){
+		try {
+			while (true){
+				WatchKey key=watchService.take();
+				boolean changed=false;
+				for (WatchEvent<?> event : key.pollEvents()){
+					if (file.getFileName().equals(event.context())){
+						changed=true;
+					}
+				}
+				if (changed){
+					reload();
+				}
+				if (!key.reset()){
+					logger.warn("Stopped watching "+file);
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			return;
+		}
+	}
+
+	//Loads the file and swaps it in if it is valid and not the same as the current snapshot.
+	synchronized void reload(){
+		TequilaWeights loaded;
+		try {
+			loaded=TequilaWeights.load(file, versions.get()+1);
+		} catch (IOException e) {
+			rejected.incrementAndGet();
+			logger.warn("Rejected weights: "+e.getMessage());
+			return;
+		}
+		TequilaWeights previous=current.get();
+		if (previous!=null && previous.sameValues(loaded)){
+			return;
+		}
+		versions.incrementAndGet();
+		current.set(loaded);
+		logger.info("Loaded "+loaded+((previous==null) ? "" : ", replacing "+previous));
+	}
+}
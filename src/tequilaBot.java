@@ -1,14 +1,17 @@
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 //import java.lang.Math;
 import de.ovgu.dke.teaching.ml.tictactoe.api.IBoard;
 import de.ovgu.dke.teaching.ml.tictactoe.api.IPlayer;
-import de.ovgu.dke.teaching.ml.tictactoe.api.IllegalMoveException;
-import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
 /**
  * @author 
  * 		1) Gabriel Campero
@@ -19,15 +22,16 @@ import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
  * Here we present a tic-tac-toe player based on reinforcement learning, 
  * modeled similar to linear regression. 
  * 
- * It takes as an input a file called weightsTequilaBot.txt, of 125 lines, each with 9 csv.
+ * It takes as an input a file called weightsTequilaBot.txt, of 125 lines, each with 15 csv
+ * (older files with 9 csv are still read, see TequilaWeights).
  * 
  * Since boards at different stages of the game cannot be compared correctly, 
  * the model aims to have a set of weights for every stage of the game.
  * 
- * This is done by having a set of weights W0-W8 for every stage/turn/move of the game
+ * This is done by having a set of weights W0-W14 for every stage/turn/move of the game
  * (move 1, move 2,...... move 125 etc.). From 1 to 125 possible moves.
  * 
- * Each set of W0 to W8 weights represent, for a given turn, respectively: 
+ * Each set of W0 to W14 weights represent, for a given turn, respectively: 
  *  W0: Number of unblocked lines with 4 chips of our player.
  *  W1: Number of unblocked lines with 3 chips of our player.
  *  W2: Number of unblocked lines with 2 chips of our player.
@@ -36,10 +40,18 @@ import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
  *  W5: Number of unblocked lines with 3 chips of our opponent.
  *  W6: Number of unblocked lines with 2 chips of our opponent.
  *  W7: Number of unblocked lines with 1 chip of our opponent.
- *  W8: Independent variable
+ *  W8, W9: Fork cells of ours / of the opponent: empty cells where 2 or more unblocked lines with 2 or more chips cross.
+ *  W10, W11: Double threats of ours / of the opponent: empty cells where 2 or more unblocked lines with 3 or more chips cross.
+ *  W12, W13: Our / the opponent's chips on the centre and the space diagonals.
+ *  W14: Independent variable
+ *  The features for W0-W13 are kept up to date move by move by TequilaFeatures.
  *  
- *  We store the learned weights for every move (125 rows x 9 columns)
+ *  We store the learned weights for every move (125 rows x 15 columns)
  * in a weightsTequilaBot.txt file, which is loaded and saved respectively at endgame / beginning.
+ * Turns can also share rows, in buckets or interpolated between anchor turns (see TequilaTurnLayout): the file then
+ * starts with a "#turns" line and has one line per row. -DtequilaBot.turnLayout=<layout> converts the loaded weights.
+ * The file is watched by a TequilaWeightsWatcher, shared by all bots in the JVM: when a trainer writes new weights,
+ * they are validated and the bot switches to the new snapshot (TequilaWeights) before its next move.
  * 
  *  The appropriate loaded weights are used to score the board after a given play and learn from result (win/loss/draw)
  *  at every stage of the game, and is also stored back into the file on endgame. 
@@ -56,6 +68,8 @@ import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
  *  use a heuristic to play so as to block the opponent.
  *  
  *  A final heuristic consists on always selecting for the first move (if there is chance for it), the center of the board.
+ *  After that, early positions are looked up in an opening book (openingBookTequilaBot.bin, see TequilaOpeningBook),
+ *  generated offline by TequilaOpeningBookGenerator with a deeper search than makeMove does. Book moves are not learned from either.
  *  
  *  The integration of these heuristics with the weight update functions was something that we thought could affect negatively our model, since the score of the board from those moves does not represent really the tendency of the playing according to the scoring. Because of this reasoning we decided not to learn from the board at those moves.
  *  In this way, our model is only learning the path towards winning states, but not the winning move itself. It is also learning which paths help to avoid a loss, but not the specific move to avoid it.
@@ -71,6 +85,16 @@ import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
  *  Given these weights we trained our model in 1 tournament of 10 rounds against RandomPlayer:SmartPlayer:SmartPlayer.
  *  Perhaps more training would be helpful, but given the time required for it, we had to settle for this.
  *  
+ *  For A/B-testing weight files, further weight files can be given as shadow models in the system property
+ *  tequilaBot.shadowWeights (file names separated by colon, as players in tictactoe.properties). The shadow models
+ *  score every candidate move of selectMove from the same features as our model, but they do not play and do not learn;
+ *  their chosen moves are logged (debug level) when they disagree with ours, and their agreement rates (info level) at the
+ *  end of each match. Shadow files that can't be loaded are left out, with an error in the log.
+ *  
+ *  What is learned can be logged to a CSV file, see TequilaTrainingLog (-DtequilaBot.trainingLog=file).
+ *  Every move, with what it was decided on, can be traced to a ring file and replayed offline, see TequilaTrace
+ *  (-DtequilaBot.trace=file) and TequilaReplay.
+ *  
  *  4) Since we noticed that our model might to be biased towards draws (from the heuristics used)
  *  we decided that during the training of our model we would not allow learning for draws, but only for wins and loses.
  *  
@@ -78,25 +102,51 @@ import de.ovgu.dke.teaching.ml.tictactoe.game.Move;
  *  public String getName(): returns name of the player
  *  
  *  Inner private functions:
- *  private int[][] boardToLineArray (IBoard ): Changes a board to an array of 109 lines.
- *  private int[] findFeatures(int[][] lines): Given the former array, calculates the X0-X7 variables or features.
- *  private boolean imminentVictory(IBoard ): Asserts if there is a chance for winning in this move.
+ *  int[][] boardToLineArray (IBoard ): Changes a board to an array of 109 lines.
+ *  int[] findFeatures(int[][] lines): Given the former array, calculates the X0-X7 variables or features (used for the heuristics;
+ *                                   the scoring uses the same and further features from TequilaFeatures).
+ *  private boolean imminentVictory(TequilaFeatures ): Asserts if there is a chance for winning in this move.
  *  private boolean imminentDefeat(IBoard ): Asserts if there is a chance of the opponent winning in the next move. 
- *  private void loadExperience(): Loads the experience or weights.
- *  private double score(int []): Scores the board, according to a set of variables from findFeatures, 
+ *  void loadExperience(): Loads the experience or weights.
+ *  double score(int []): Scores the board, according to a set of variables from findFeatures, 
  *                                   and the weights for the current move, signaled by the variable turn.
+ *  double score(double [], int []): The same, with the given weights of the turn (ours or a shadow model's).
  *  private int[] maximumScorePosition(): Selects the position with a maximum score, according to our calculation in the current turn.
  *  private void addAndStoreExperience(IBoard ): Stores the experience of a given final board, updating the weights and writing to the file.
- *  private int[] selectMove (IBoard ): Used by makeMove, selects the best move given a board, using our calculation and no heuristics.
- *  public int[] makeMove(IBoard ): The logic of making a move, it checks if variables need initialization, then if
- *                                       heuristics apply, finally if not, it calls selectMove.
+ *  void addExperience(IBoard ), void storeExperience(): The two halves of addAndStoreExperience, also used by TequilaSelfPlay,
+ *                                       whose workers learn in memory and send the changes of the weights to a coordinator.
+ *  void useWeights(double [][], TequilaTurnLayout): Plays with the given weights instead of loading them from the file.
+ *  void refreshWeights(): Switches to the latest snapshot of the weights file, if it changed.
+ *  private int[] selectMove (TequilaBoard, TequilaFeatures): Used by makeMove, selects the best move given a board (converted
+ *                                       once per move by decideMove), using our calculation and no heuristics.
+ *  private int[] lookAhead(TequilaFeatures, int []): With -DtequilaBot.lookahead=N, checks the N best moves of selectMove
+ *                                       against the opponent's replies. N is the compute budget per move (see TequilaBenchmark).
+ *  public int[] makeMove(IBoard ): Makes a move with decideMove, and traces it if there is a trace.
+ *  private int[] decideMove(IBoard ): The logic of making a move, it checks if variables need initialization, then if
+ *                                       heuristics or the opening book apply, finally if not, it calls selectMove.
  *  public void onMatchEnds(IBoard ): What is done when the match ends.
+ *  
+ *  The package-private functions are also used by TequilaOpeningBookGenerator.
  */
 
 public class tequilaBot implements IPlayer {
+	private static final Logger logger=LoggerFactory.getLogger(tequilaBot.class);
+
 	/*Set of global variables describing the model*/
-	double thetas[][]=new double [125][9]; //The stored thetas or weights.
+	double thetas[][]=new double [125][TequilaWeights.COLUMNS]; //The stored thetas or weights, one row per row of the layout.
+	TequilaTurnLayout layout=TequilaTurnLayout.IDENTITY; //Which row of thetas is used in which turn.
+	TequilaTurnLayout configuredLayout=configuredLayout(); //Layout to convert loaded weights to (-DtequilaBot.turnLayout), or null.
+	double scratchRow[]=new double [TequilaWeights.COLUMNS]; //Weights of the current turn, when the layout blends two rows.
+	TequilaWeightsWatcher weightsWatcher=null; //Watcher of weightsTequilaBot.txt, null when playing with weights given by useWeights.
+	TequilaWeights weights=null; //The snapshot thetas was taken from. Shared with other bots, unless we learn and have our own copy.
 	double learningRate=0.1;
+	boolean learning=!"false".equals(System.getProperty("tequilaBot.learn")); //Whether to learn and store the weights at the end of a match.
+	TequilaTrainingLog trainingLog=TequilaTrainingLog.get(); //Sampled log of the updates, null unless -DtequilaBot.trainingLog is given.
+	double shadowThetas[][][]=new double [0][125][TequilaWeights.COLUMNS]; //Weights of the shadow models, which are only scored, never played or trained.
+	String shadowFiles[]=new String [0]; //Files the shadow models were loaded from.
+	TequilaTurnLayout shadowLayouts[]=new TequilaTurnLayout [0]; //Layouts of the shadow models.
+	int lookahead=Integer.getInteger("tequilaBot.lookahead", 0); //How many of the best moves selectMove checks against the opponent's replies, 0 for none.
+	TequilaTrace trace=TequilaTrace.get(); //Trace of our moves, null unless -DtequilaBot.trace is given.
 	
 	/*Variables with information about the board*/
 	int posCount=125; //The number of positions in a 5*5*5 board.
@@ -111,6 +161,14 @@ public class tequilaBot implements IPlayer {
 	boolean tentative=true; //Flag defining the tentativeness of a move.
 	boolean winCheck=true;  //Flag
 	boolean learnFromThisMove[]= new boolean [125]; //Flags so the model doesn't learn from moves done by heuristics.
+	TequilaOpeningBook openingBook=null; //Memory-mapped opening book, null if there is no book file.
+	int shadowDecisions=0; //Moves decided by selectMove since the weights were loaded, on which the shadow models were compared to ours.
+	int shadowAgreements[]=new int [0]; //For each shadow model, how many of those moves it would have played as well.
+	byte decisionSource=TequilaTrace.SELECT; //Which part of decideMove chose the last move, for the trace.
+	double checksummed[][]=null; //The thetas thetasChecksum belongs to, null after they were changed.
+	long thetasChecksum=0;
+	IPlayer opponent=null; //The player that made the opponent's chips in the current match (the one that moved last).
+	int ourOffset=-1; //0 if we moved first in the current match, 1 if second, -1 before our first move.
 	
 	
 	//Private functions
@@ -139,7 +197,7 @@ public class tequilaBot implements IPlayer {
 	 *  track of each of these possibilities for easier handling of cases. 
 	 *   
 	 */
-	private int[][] boardToLineArray (IBoard copy){
+	int[][] boardToLineArray (IBoard copy){
 		int thisGameLines [][]=new int [109][5];	//Stores the 109 lines
 		int currLine=0; 							//Maintains indexing into thisGameLines[][]
 
@@ -157,7 +215,7 @@ public class tequilaBot implements IPlayer {
 					if (copy.getFieldValue(extraVal)==null) {
 						thisGameLines[currLine][j]=0;
 					}
-					else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+					else if (copy.getFieldValue(extraVal)!=opponent){
 						thisGameLines[currLine][j]=1;
 						numElems++;//Found move by player
 					}
@@ -195,7 +253,7 @@ public class tequilaBot implements IPlayer {
 					if (copy.getFieldValue(extraVal)==null) {
 						thisGameLines[currLine][i]=0;
 					}
-					else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+					else if (copy.getFieldValue(extraVal)!=opponent){
 						thisGameLines[currLine][i]=1;
 						numElems++;
 					}
@@ -231,7 +289,7 @@ public class tequilaBot implements IPlayer {
 				if (copy.getFieldValue(extraVal)==null) {
 					thisGameLines[currLine][i]=0;
 				}
-				else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+				else if (copy.getFieldValue(extraVal)!=opponent){
 					thisGameLines[currLine][i]=1;
 					numElems++;
 				}
@@ -266,7 +324,7 @@ public class tequilaBot implements IPlayer {
 					if (copy.getFieldValue(extraVal)==null) {
 						thisGameLines[currLine][i]=0;
 					}
-					else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+					else if (copy.getFieldValue(extraVal)!=opponent){
 						thisGameLines[currLine][i]=1;
 						numElems++;
 					}
@@ -309,7 +367,7 @@ public class tequilaBot implements IPlayer {
 					if (copy.getFieldValue(extraVal)==null) {
 						thisGameLines[currLine][k]=0;
 					}
-					else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+					else if (copy.getFieldValue(extraVal)!=opponent){
 						thisGameLines[currLine][k]=1;
 						numElems++;
 					}
@@ -344,7 +402,7 @@ public class tequilaBot implements IPlayer {
 				if (copy.getFieldValue(extraVal)==null) {
 					thisGameLines[currLine][i]=0;
 				}
-				else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+				else if (copy.getFieldValue(extraVal)!=opponent){
 					thisGameLines[currLine][i]=1;
 					numElems++;
 				}
@@ -380,7 +438,7 @@ public class tequilaBot implements IPlayer {
 				if (copy.getFieldValue(extraVal)==null) {
 					thisGameLines[currLine][i]=0;
 				}
-				else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+				else if (copy.getFieldValue(extraVal)!=opponent){
 						thisGameLines[currLine][i]=1;
 						numElems++;
 					}
@@ -418,7 +476,7 @@ public class tequilaBot implements IPlayer {
 				if (copy.getFieldValue(extraVal)==null) {
 					thisGameLines[currLine][i]=0;
 				}
-				else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+				else if (copy.getFieldValue(extraVal)!=opponent){
 					thisGameLines[currLine][i]=1;
 					numElems++;
 				}
@@ -453,7 +511,7 @@ public class tequilaBot implements IPlayer {
 					if (copy.getFieldValue(extraVal)==null) {
 					thisGameLines[currLine][i]=0;
 					}
-				else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+				else if (copy.getFieldValue(extraVal)!=opponent){
 						thisGameLines[currLine][i]=1;
 						numElems++;
 					}
@@ -490,7 +548,7 @@ public class tequilaBot implements IPlayer {
 			if (copy.getFieldValue(extraVal)==null) {
 				thisGameLines[currLine][i]=0;
 			}
-			else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+			else if (copy.getFieldValue(extraVal)!=opponent){
 				thisGameLines[currLine][i]=1;
 				numElems++;
 			}
@@ -523,7 +581,7 @@ public class tequilaBot implements IPlayer {
 			if (copy.getFieldValue(extraVal)==null) {
 				thisGameLines[currLine][i]=0;
 			}
-			else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+			else if (copy.getFieldValue(extraVal)!=opponent){
 					thisGameLines[currLine][i]=1;
 					numElems++;
 				}
@@ -556,7 +614,7 @@ public class tequilaBot implements IPlayer {
 			if (copy.getFieldValue(extraVal)==null) {
 				thisGameLines[currLine][i]=0;
 			}
-			else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+			else if (copy.getFieldValue(extraVal)!=opponent){
 					thisGameLines[currLine][i]=1;
 					numElems++;
 				}
@@ -589,7 +647,7 @@ public class tequilaBot implements IPlayer {
 			if (copy.getFieldValue(extraVal)==null) {
 				thisGameLines[currLine][i]=0;
 			}
-			else if (copy.getFieldValue(extraVal).toString().contains("tequilaBot")){
+			else if (copy.getFieldValue(extraVal)!=opponent){
 					thisGameLines[currLine][i]=1;
 					numElems++;
 				}
@@ -618,7 +676,7 @@ public class tequilaBot implements IPlayer {
 	return thisGameLines;		
 	}	
 	
-    private int[] findFeatures(int[][] lines){
+    int[] findFeatures(int[][] lines){
     	int stats[]=new int [8]; //Array 0-3> Number of pos where we have 4,3,2,1 and a winning chance. Array from 4-7>Number of pos where opponent has 4,3,2,1 and a winning chance. Array 8, free lines, Array 9, blocked lines.
     	for (int i=0; i<8; i++){
     		stats[i]=0;
@@ -652,9 +710,18 @@ public class tequilaBot implements IPlayer {
     }
   
     
-    private boolean imminentVictory(IBoard board){
-    	if(findFeatures(boardToLineArray(board))[0]>0){
-    		return true;
+    //Looks for a move that completes one of our lines, and keeps it in winningPos.
+    private boolean imminentVictory(TequilaFeatures features){
+    	for (int c=0; c<posCount; c++){
+    		if (features.isEmpty(c)){
+    			features.play(c, TequilaFeatures.OURS);
+    			boolean wins=features.completes(c);
+    			features.undo(c);
+    			if (wins){
+    				winningPos=new int [] {c/(dimSize*dimSize), (c/dimSize)%dimSize, c%dimSize};
+    				return true;
+    			}
+    		}
     	}
     	return false;
     }
@@ -669,48 +736,93 @@ public class tequilaBot implements IPlayer {
 
     
     //Loads the experience form the file and initializes certain supporting variables and flags.
-    private void loadExperience(){
+    void loadExperience(){
 		//Initializations
     	turn=0;
 		for (int i=0; i<125; i++){
 			learnFromThisMove[i]=true; 
 		}
 		//And now the reading from the file...
-		BufferedReader reader=null;  
-		try {
-			reader = new BufferedReader(new FileReader("weightsTequilaBot.txt"));
-			String line = null;
-			int i=0;
-			int j=0; 
-			while ((line = reader.readLine()) !=null)   {		    
-						String[] splited = line.split(",");
-						  for (String part : splited) {	
-								  thetas[i][j]=Double.parseDouble(part);
-								  j=j+1;
-						  }
-				i=i+1;
-				j=0;
-			}
-		}
-			catch (IOException e) {
-			    e.printStackTrace();
-			} finally {
-			    try {
-			        reader.close();
-			    } catch (IOException e) {
-			        e.printStackTrace();
-			    }
+		weightsWatcher=TequilaWeightsWatcher.get("weightsTequilaBot.txt");
+		refreshWeights();
+		//And the shadow models, if any.
+		String shadows=System.getProperty("tequilaBot.shadowWeights");
+		if (shadows!=null && !shadows.isEmpty()){
+			//Models that can't be loaded are left out, so they are neither scored nor counted.
+			List<String> files=new ArrayList<String>();
+			List<TequilaWeights> models=new ArrayList<TequilaWeights>();
+			for (String file : shadows.split(":")){
+				try {
+					models.add(TequilaWeights.load(Paths.get(file), 0));
+					files.add(file);
+				} catch (IOException e) {
+					logger.error("Could not load shadow model "+file+", it is left out", e);
+				}
+			}
+			shadowFiles=files.toArray(new String [files.size()]);
+			shadowThetas=new double [models.size()][][];
+			shadowLayouts=new TequilaTurnLayout [models.size()];
+			for (int k=0; k<models.size(); k++){
+				shadowThetas[k]=models.get(k).values();
+				shadowLayouts[k]=models.get(k).getLayout();
 			}
 		}
+		shadowAgreements=new int [shadowFiles.length];
+		shadowDecisions=0;
+	}
+
+    //Switches to the latest snapshot of the weights file, if there is a new one. Called between moves.
+    void refreshWeights(){
+    	if (weightsWatcher==null){
+    		return;
+    	}
+    	TequilaWeights latest=weightsWatcher.current();
+    	if (latest!=null && latest!=weights){
+    		weights=latest;
+    		if (configuredLayout!=null && !configuredLayout.equals(latest.getLayout())){
+    			thetas=configuredLayout.convert(latest.values(), latest.getLayout()); //Written in the new layout if we learn.
+    			layout=configuredLayout;
+    		}
+    		else {
+    			thetas=learning ? latest.copyValues() : latest.values(); //Only a bot that learns modifies thetas.
+    			layout=latest.getLayout();
+    		}
+    	}
+    }
+
+    //Plays with the given weights (not a copy) and layout instead of the ones in the file, as if they had been loaded.
+    void useWeights(double weights[][], TequilaTurnLayout weightsLayout){
+    	turn=0;
+		for (int i=0; i<125; i++){
+			learnFromThisMove[i]=true; 
+		}
+		thetas=weights;
+		layout=weightsLayout;
+		checksummed=null;
+		experienceLoaded=true;
+    }
+
+    //The layout given with -DtequilaBot.turnLayout, or null to keep the one of the weights file.
+    static TequilaTurnLayout configuredLayout(){
+    	String configured=System.getProperty("tequilaBot.turnLayout");
+    	return (configured==null || configured.isEmpty()) ? null : TequilaTurnLayout.parse(configured);
+    }
 
 	//This function scores the board in each stage or turn. 
-    //Scores the board, according to a set of variables from findFeatures, and the weights for the current move, signaled by the variable turn.
- 	private double score(int var[]){
+    //Scores the board, according to the features X0-X13 from TequilaFeatures, and the weights for the current move, signaled by the variable turn.
+    //Our features are weighted against the opponent's ones, as a ratio.
+ 	double score(int var[]){
+ 		return score(layout.row(thetas, turn, scratchRow), var);
+	}
+
+ 	//The same as score(int []), but with the given weights of the turn, so that selectMove finds them once per move
+ 	//and shadow models can score the features we already found.
+ 	double score(double w[], int var[]){
  		double score_result=0; 
- 		score_result=((thetas[turn][0]*var[0]+thetas[turn][1]*var[1]+thetas[turn][2]*var[2]+thetas[turn][3]*var[3])/(thetas[turn][4]*var[4]
- 				+thetas[turn][5]*var[5]+thetas[turn][6]*var[6]+thetas[turn][7]*var[7]))+thetas[turn][8];
- 		//score_result=thetas[turn][0]*var[0]+thetas[turn][1]*var[1]+thetas[turn][2]*var[2]+thetas[turn][3]*var[3]+thetas[turn][4]*var[4]
-			//	+thetas[turn][5]*var[5]+thetas[turn][6]*var[6]+thetas[turn][7]*var[7]+thetas[turn][8];
+ 		score_result=((w[0]*var[0]+w[1]*var[1]+w[2]*var[2]+w[3]*var[3]+w[8]*var[8]+w[10]*var[10]+w[12]*var[12])/(w[4]*var[4]
+ 				+w[5]*var[5]+w[6]*var[6]+w[7]*var[7]+w[9]*var[9]+w[11]*var[11]+w[13]*var[13]))+w[14];
+ 		//score_result=w[0]*var[0]+w[1]*var[1]+w[2]*var[2]+w[3]*var[3]+w[4]*var[4]
+			//	+w[5]*var[5]+w[6]*var[6]+w[7]*var[7]+w[14];
  		return score_result;
 	}
  	
@@ -737,107 +849,103 @@ public class tequilaBot implements IPlayer {
  	
 	//Adds and stores the experience of the game.
 	private void addAndStoreExperience(IBoard copy){
-		PrintWriter writer;
+		addExperience(copy);
+		storeExperience();
+	}
+
+	//Updates thetas with the experience of the game.
+	void addExperience(IBoard copy){
+		if (!copy.isFinalState()){
+			return; //The match was aborted, e.g. by an illegal move, so there is no result to learn from.
+		}
 		int turns=copy.getMoveHistory().size(); //It was -1, because we previously did not learn from final boards. Now we do.
 		int offset;
-		IBoard replay=copy.clone();
-		replay.clear();
+		TequilaFeatures replay=new TequilaFeatures(); //Features of the game, replayed move by move.
+		int replayed=0;
+		//Our moves are told apart by their order, as the opponent may be a tequilaBot as well (TequilaSelfPlay).
+		//Only for a game we did not play ourselves we go by the name of the first player.
+		if (ourOffset>=0){
+			offset=ourOffset;
+		}
+		else if (copy.getMoveHistory().get(0).getPlayer().getName()==this.getName()){
+			offset=0;
+		}
+		else {
+			offset=1;
+		}
 		int y=(125-turns);
 		if (copy.getWinner()!=null){
-			if (copy.getWinner().getName()!=this.getName()){
+			if ((turns-1)%2!=offset){ //The winner made the last move.
 				y=(turns-125);
 			}
 		}
 		else{
 			y=0;
 		}
-		if (copy.getMoveHistory().get(0).getPlayer().getName()==this.getName()){
-			offset=0;
-			try {
-				replay.makeMove(copy.getMoveHistory().get(0));
-			} catch (IllegalMoveException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		else {
-			offset=1;
-			try {
-				replay.makeMove(copy.getMoveHistory().get(0));
-			} catch (IllegalMoveException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			try {
-				replay.makeMove(copy.getMoveHistory().get(1));
-			} catch (IllegalMoveException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
+		long loggedGame=(trainingLog==null) ? -1 : trainingLog.sampleGame();
 		/*First we recreate the game, updating thetas with winning knowledge...
 		 * 
 		 * *
 		 */
 		//if (y!=0){ //Since our learner seems biased against draws, we experimented with not learning from them.
 			for (int i=offset; i<turns-1; i=i+2){
-				try {
-					replay.makeMove(copy.getMoveHistory().get(i+1));
-				} catch (IllegalMoveException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				//The board after our move i and the opponent's answer.
+				while (replayed<=i+1){
+					replay.play(copy.getMoveHistory().get(replayed), (replayed%2==offset) ? TequilaFeatures.OURS : TequilaFeatures.THEIRS);
+					replayed++;
 				}
-				int vars[]=findFeatures(boardToLineArray(replay));
+				int vars[]=replay.values();
 				turn=i;
 				double tempScore=score(vars);
 				double error=y-tempScore;
 				//error=java.lang.Math.sqrt(error*error);
-				if(learnFromThisMove[i]){
-					System.out.println("Storing thetas for: "+ this.getName()+" Turn:"+i + " TempScore: "+tempScore+" y: "+y +" Error: "+error+" "+vars[0]+" "+vars[1]+" "+vars[2]+" "+vars[3]+" Op: "+vars[4]+" "+vars[5]+" "+vars[6]+" "+vars[7]);
-					thetas[i][0]=thetas[i][0]+learningRate*vars[0]*error;
-					thetas[i][1]=thetas[i][1]+learningRate*vars[1]*error;
-					thetas[i][2]=thetas[i][2]+learningRate*vars[2]*error;
-					thetas[i][3]=thetas[i][3]+learningRate*vars[3]*error;
-					
-					thetas[i][4]=thetas[i][4]+learningRate*vars[4]*error;
-					thetas[i][5]=thetas[i][5]+learningRate*vars[5]*error;
-					thetas[i][6]=thetas[i][6]+learningRate*vars[6]*error;
-					thetas[i][7]=thetas[i][7]+learningRate*vars[7]*error;
-					
-					thetas[i][8]=thetas[i][8]+learningRate*error;
-				}
-				if (i+2<turns){
-					try {
-						replay.makeMove(copy.getMoveHistory().get(i+2));
-					} catch (IllegalMoveException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					} 	
+				//A board without unblocked lines of the opponent has no finite score (the ratio divides by 0), and would
+				//turn the weights into Infinity and NaN.
+				if(learnFromThisMove[i] && !Double.isNaN(error) && !Double.isInfinite(error)){
+					if (loggedGame>=0){
+						trainingLog.record(loggedGame, i, tempScore, y, vars);
+					}
+					layout.update(thetas, i, vars, learningRate*error);
 				}
 			}
+		checksummed=null;
 		//} //
+	}
+
+	//Writes thetas to the weights file.
+	void storeExperience(){
+		Path file=Paths.get("weightsTequilaBot.txt").toAbsolutePath();
+		Path tmp=null;
 		try {
-			writer = new PrintWriter("weightsTequilaBot.txt", "UTF-8");
-			for (int i=0;i<125;i++){
-				writer.println(thetas[i][0] + ","
-						+thetas[i][1] + ","
-						+thetas[i][2] + ","
-						+thetas[i][3] + ","
-						+thetas[i][4] + ","
-						+thetas[i][5] + ","
-						+thetas[i][6] + ","
-						+thetas[i][7] + ","
-						+thetas[i][8]);
-			}
-			writer.close();
-		} catch (FileNotFoundException | UnsupportedEncodingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}	
+			//Written next to the file and then moved over it, so that watchers never see it half written.
+			//Every writer has a temporary file of its own, as several bots (or JVMs) may store their weights at once.
+			tmp=Files.createTempFile(file.getParent(), "weightsTequilaBot", ".tmp");
+			if (Files.exists(file)){
+				try {
+					Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(file)); //Temporary files are only readable by us.
+				} catch (UnsupportedOperationException e) {
+					//Not a POSIX file system, the temporary file has the usual permissions.
+				}
+			}
+			TequilaWeights.write(tmp, thetas, layout);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			//Our own write is published right away, so the next bot of this JVM starts from it even if the file is not
+			//watched (-DtequilaBot.watchWeights=false) or the watcher has not seen the change yet.
+			TequilaWeightsWatcher.get("weightsTequilaBot.txt").reload();
+		} catch (IOException e) {
+			logger.error("Could not store the weights in "+file, e);
+			try {
+				if (tmp!=null){
+					Files.deleteIfExists(tmp);
+				}
+			} catch (IOException f) {
+				logger.error("Could not delete "+tmp, f);
+			}
+		}
 	}
 	
-	private int[] selectMove (IBoard board){
-		turn=board.getMoveHistory().size();
+	private int[] selectMove (TequilaBoard board, TequilaFeatures features){
+		turn=board.moves();
 		//First we clean the scoresboard:
 		for (int k=0; k<dimSize; k++){
 			for (int i=0; i<dimSize; i++){
@@ -846,31 +954,122 @@ public class tequilaBot implements IPlayer {
 				}
 			}
 		 }
+		//The moves the shadow models would choose, with the same tie breaking as maximumScorePosition.
+		int shadowMoves[][]=new int [shadowThetas.length][];
+		double shadowMax[]=new double [shadowThetas.length];
+		for (int m=0; m<shadowThetas.length; m++){
+			shadowMoves[m]=null; //Stays null if the model has no finite score for any move.
+			shadowMax[m]=Double.NEGATIVE_INFINITY;
+		}
 		//Now we interate on all positions and calculate the score of the board if they were used to make a move..
+		//The features are found once for the board (in decideMove), and then only updated for each move we try.
+		//And the weights of this turn are found once as well.
+		double row[]=layout.row(thetas, turn, scratchRow);
+		double shadowRows[][]=new double [shadowThetas.length][];
+		for (int m=0; m<shadowThetas.length; m++){
+			shadowRows[m]=shadowLayouts[m].row(shadowThetas[m], turn, new double [TequilaWeights.COLUMNS]);
+		}
 		 for (int k=0; k<dimSize; k++){
 			for (int i=0; i<dimSize; i++){
 				for (int j=0; j<dimSize; j++){
-					int extraVal[]=new int [] {k,i,j};
-					if (board.getFieldValue(extraVal)!=null){
+					int cell=k*dimSize*dimSize+i*dimSize+j;
+					if (board.cell(cell)!=0){
 						scoresboard[k][i][j]=Double.NEGATIVE_INFINITY;
 					}
 					else {
-						 IBoard copy=board.clone();
-						 try {
-								copy.makeMove(new Move(this, extraVal));
-								scoresboard[k][i][j]=score(findFeatures(boardToLineArray(copy)));
-							} catch (IllegalMoveException e) {
-								// move was not allowed
+						int extraVal[]=new int [] {k,i,j};
+						features.play(cell, TequilaFeatures.OURS);
+						int vars[]=features.values();
+						features.undo(cell);
+						scoresboard[k][i][j]=score(row, vars);
+						for (int m=0; m<shadowThetas.length; m++){
+							double shadowScore=score(shadowRows[m], vars);
+							if (shadowMax[m]<shadowScore){
+								shadowMax[m]=shadowScore;
+								shadowMoves[m]=extraVal;
 							}
+						}
 				     }
 				}
 			}
        }
 	  int returnVal[]=maximumScorePosition();
+	  if (lookahead>0){
+		  returnVal=lookAhead(features, returnVal);
+	  }
+	  if (weights!=null){
+		  weights.countDecision();
+	  }
+	  if (shadowThetas.length>0){
+		  shadowDecisions++;
+		  for (int m=0; m<shadowThetas.length; m++){
+			  if (Arrays.equals(shadowMoves[m], returnVal)){
+				  shadowAgreements[m]++;
+			  }
+			  else if (logger.isDebugEnabled()){
+				  logger.debug("Shadow model "+shadowFiles[m]+" Turn:"+turn+" would play "
+						  +((shadowMoves[m]==null) ? "no move (no finite score)" : Arrays.toString(shadowMoves[m]))+" instead of "+Arrays.toString(returnVal));
+			  }
+		  }
+	  }
 //Useful for debugging:	  System.out.println("maxScore: "+returnVal[0]+" "+returnVal[1]+" "+returnVal[2]+" "+scoresboard[returnVal[0]][returnVal[1]][returnVal[2]]);
       return returnVal;
 	}
 	
+	/*Function: lookAhead
+	 * Checks the best moves of the scoresboard (at most lookahead of them, starting with the move we chose) against
+	 * every reply of the opponent, and returns the one whose worst reply leaves us with the highest score, as
+	 * TequilaOpeningBookGenerator does for the book. Ties go to the move with the better score of its own.
+	 * The boards after the replies are scored with the weights of the current turn.
+	 */
+	private int[] lookAhead(TequilaFeatures features, int chosen[]){
+		Integer candidates[]=new Integer [posCount];
+		int count=0;
+		int first=chosen[0]*dimSize*dimSize+chosen[1]*dimSize+chosen[2];
+		for (int c=0; c<posCount; c++){
+			if (c!=first && features.isEmpty(c)){
+				candidates[count++]=c;
+			}
+		}
+		Arrays.sort(candidates, 0, count, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(cellScore(b), cellScore(a));
+			}
+		});
+		int best=-1;
+		double bestValue=Double.NEGATIVE_INFINITY;
+		for (int n=features.isEmpty(first) ? -1 : 0; n<Math.min(count, lookahead-1); n++){
+			int c=(n<0) ? first : candidates[n];
+			features.play(c, TequilaFeatures.OURS);
+			double value=Double.POSITIVE_INFINITY;
+			if (!features.completes(c)){
+				for (int r=0; r<posCount && value>bestValue; r++){
+					if (features.isEmpty(r)){
+						features.play(r, TequilaFeatures.THEIRS);
+						double replyValue=features.completes(r) ? Double.NEGATIVE_INFINITY : score(features.values());
+						features.undo(r);
+						value=Math.min(value, Double.isNaN(replyValue) ? Double.NEGATIVE_INFINITY : replyValue);
+					}
+				}
+			}
+			features.undo(c);
+			if (best<0 || value>bestValue){
+				best=c;
+				bestValue=value;
+			}
+		}
+		if (best<0){
+			return chosen;
+		}
+		return new int [] {best/(dimSize*dimSize), (best/dimSize)%dimSize, best%dimSize};
+	}
+
+	//The score of a cell in the scoresboard, with NaN as the lowest.
+	private double cellScore(int c){
+		double value=scoresboard[c/(dimSize*dimSize)][(c/dimSize)%dimSize][c%dimSize];
+		return Double.isNaN(value) ? Double.NEGATIVE_INFINITY : value;
+	}
+
 	//Public functions
 	public String getName() {
 		// TODO Auto-generated method stub
@@ -878,27 +1077,58 @@ public class tequilaBot implements IPlayer {
 	}
 	
 	public int[] makeMove(IBoard board) {
-		// TODO Auto-generated method stub
+		if (trace==null){
+			return decideMove(board);
+		}
+		long start=System.nanoTime();
+		int move[]=decideMove(board);
+		long latency=System.nanoTime()-start;
+		if (checksummed!=thetas){
+			thetasChecksum=TequilaWeights.checksum(thetas, layout);
+			checksummed=thetas;
+		}
+		trace.record(board, move, decisionSource, weights, thetas, layout, thetasChecksum, lookahead, openingBook!=null, latency);
+		return move;
+	}
+
+	//The logic of makeMove, which only adds the trace.
+	private int[] decideMove(IBoard board) {
 		if (!experienceLoaded)
 		{
 			this.loadExperience();
+			openingBook=TequilaOpeningBook.get("openingBookTequilaBot.bin");
 			experienceLoaded=true;
 			
 		}
+		refreshWeights();
+		int moves=board.getMoveHistory().size();
+		ourOffset=moves%2;
+		opponent=(moves==0) ? null : board.getMoveHistory().get(moves-1).getPlayer(); //Our chips are the ones the opponent did not make.
 		if(board.getMoveHistory().size()==0)
 		{
 //Useful for debugging:			System.out.println("First Move detected - forcing 2,2,2)");
 			learnFromThisMove[0]=false; //Since we will move by heuristics, we dont learn for this move.
+			decisionSource=TequilaTrace.FIRST_MOVE;
 			return new int[] {2,2,2};
 		}
+		if (openingBook!=null){
+			int bookMove[]=openingBook.lookup(board);
+			if (bookMove!=null){
+				learnFromThisMove[board.getMoveHistory().size()]=false; //Book moves are not learned from, as with the heuristics.
+				decisionSource=TequilaTrace.BOOK;
+				return bookMove;
+			}
+		}
 		// do a move using the cloned board
-		tentative=false; winCheck=true;
-		boolean willWin=imminentVictory(board);
-		tentative=true;	winCheck=false;
+		//The board is converted once per move, and the features are found once for it.
+		TequilaBoard simulation=TequilaBoard.of(board);
+		TequilaFeatures features=TequilaFeatures.of(simulation, simulation.sideToMove());
+		boolean willWin=imminentVictory(features);
 		int[] tentativeMove=null;
 		if (willWin){
 			tentativeMove=winningPos;
 			learnFromThisMove[board.getMoveHistory().size()]=false;
+			decisionSource=TequilaTrace.WIN;
 			return winningPos;
 		}
 	/*	else{
@@ -911,14 +1141,21 @@ public class tequilaBot implements IPlayer {
 				return panickedMove;
 			}
 		}*/
-		tentativeMove=selectMove(board);
+		tentativeMove=selectMove(simulation, features);
+		decisionSource=TequilaTrace.SELECT;
 		return tentativeMove;
 	}
 
 	
 	public void onMatchEnds(IBoard board) {
-		this.addAndStoreExperience(board); 
-		//The previous line can be commented so the bot doesn't learn during the tournament.
+		if (learning){
+			this.addAndStoreExperience(board); 
+		}
+		//Learning can be switched off with -DtequilaBot.learn=false, so the bot doesn't learn during the tournament.
+		for (int m=0; m<shadowThetas.length; m++){
+			logger.info("Shadow model "+shadowFiles[m]+" agreed on "+shadowAgreements[m]+" of "+shadowDecisions+" moves ("
+					+(shadowDecisions==0 ? 0 : 100.0*shadowAgreements[m]/shadowDecisions)+"%)");
+		}
 		return;
 	}
 }